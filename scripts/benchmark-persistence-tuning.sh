@@ -0,0 +1,47 @@
+#!/bin/sh
+# Measures the persistence tuning (second-level cache, server-side prepared statements): finds the highest
+# arrival rate each variant sustains with a p99 under the limit for reads and operations, using the loadTest harness.
+# Usage: scripts/benchmark-persistence-tuning.sh [rates...]
+#   P99_LIMIT_MS=50 READ_RATIO=0.8 scripts/benchmark-persistence-tuning.sh 500 1000 2000 4000 8000
+# Variants: "baseline" runs without the second-level cache and with the driver's default prepareThreshold (5),
+# "tuned" opts into the cache and prepares from the first execution. Histograms end up in
+# build/reports/benchmark/<variant>/<rate>, every variant appends its result to docs/performance/persistence-tuning.md.
+set -eu
+
+[ $# -eq 0 ] && set -- 500 1000 2000 4000
+P99_LIMIT_MS="${P99_LIMIT_MS:-50}"
+READ_RATIO="${READ_RATIO:-0.8}" # the cache only helps balance reads, weight the mix towards them
+DURATION="${DURATION:-60s}"
+PORT="${APP_PORT:-8081}"
+URL="http://localhost:${PORT}/api/v1/wallets/00000000-0000-0000-0000-000000000000"
+REPORTS=build/reports/benchmark
+
+run_variant() { # name, cache enabled, prepare threshold
+    name=$1
+    cache=$2
+    threshold=$3
+    shift 3
+    WALLET_L2_CACHE_ENABLED=$cache DB_PREPARE_THRESHOLD=$threshold docker compose up -d --build --force-recreate app
+    until [ "$(curl -s -o /dev/null -w '%{http_code}' "$URL")" = "404" ]; do
+        sleep 0.5
+    done
+
+    best=none
+    for rate in "$@"; do
+        dir="$REPORTS/$name/$rate"
+        mkdir -p "$dir"
+        if ./gradlew -q loadTest -Pload.rate="$rate" -Pload.duration="$DURATION" -Pload.read-ratio="$READ_RATIO" \
+                -Pload.max-p99-ms="$P99_LIMIT_MS" -Pload.report-dir="$dir" > "$dir/summary.txt" 2>&1; then
+            best=$rate
+        else
+            break # latency limit missed or invariants broken, see summary.txt
+        fi
+    done
+    echo "$name: highest rate with p99 <= ${P99_LIMIT_MS} ms: $best req/s" | tee "$REPORTS/$name/result.txt"
+    echo "| $(date -u +%Y-%m-%d) | $(git rev-parse --short HEAD) | $name | $READ_RATIO | $P99_LIMIT_MS | $best |" \
+        >> docs/performance/persistence-tuning.md
+}
+
+docker compose up -d --wait postgres
+run_variant baseline false 5 "$@"
+run_variant tuned true 1 "$@"
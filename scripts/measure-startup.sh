@@ -0,0 +1,33 @@
+#!/bin/sh
+# Measures time-to-first-request of the app container: from "docker compose up" until the API answers.
+# Every run appends its result to docs/performance/startup.md.
+# Usage: scripts/measure-startup.sh [compose files...]
+#   scripts/measure-startup.sh docker-compose.yml                          # default image
+#   scripts/measure-startup.sh docker-compose.yml docker-compose.fast.yml  # fast startup variant
+set -eu
+
+[ $# -eq 0 ] && set -- docker-compose.yml
+COMPOSE="docker compose"
+for f in "$@"; do COMPOSE="$COMPOSE -f $f"; done
+
+PORT="${APP_PORT:-8081}"
+URL="http://localhost:${PORT}/api/v1/wallets/00000000-0000-0000-0000-000000000000" # 404 means the full stack answered
+
+$COMPOSE build --quiet
+$COMPOSE up -d --wait postgres
+if $COMPOSE config --services | grep -qx migrate; then
+    $COMPOSE up migrate # schema migration is a separate job in the fast variant, not part of instance startup
+fi
+$COMPOSE rm -sf app >/dev/null 2>&1 || true
+
+start=$(date +%s%N)
+$COMPOSE up -d --no-deps app
+until [ "$(curl -s -o /dev/null -w '%{http_code}' "$URL")" = "404" ]; do
+    sleep 0.05
+done
+end=$(date +%s%N)
+
+millis=$(( (end - start) / 1000000 ))
+echo "time to first request: $millis ms"
+echo "| $(date -u +%Y-%m-%d) | $(git rev-parse --short HEAD) | $* | $millis |" >> docs/performance/startup.md
+$COMPOSE logs app | grep -m1 "Started ItrumTaskApplication" || true
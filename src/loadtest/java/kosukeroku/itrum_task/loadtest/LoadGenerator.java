@@ -0,0 +1,350 @@
+package kosukeroku.itrum_task.loadtest;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.HdrHistogram.ConcurrentHistogram;
+import org.HdrHistogram.Histogram;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+// open-model load generator: requests leave on a fixed schedule no matter how slow the service is, and latency is
+// measured from the scheduled send time, so a stall shows up in every request that should have been sent during
+// it (coordinated omission), not only in the one that was stuck. Ends with a balance invariant check.
+public final class LoadGenerator {
+
+    private static final long HIGHEST_TRACKABLE_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final LoadTestOptions options;
+    private final ObjectMapper objectMapper = new ObjectMapper();
+    private final HttpClient httpClient;
+    private final ExecutorService clientExecutor;
+    private final Semaphore inFlight;
+
+    private final List<UUID> walletIds = new ArrayList<>();
+    // per wallet, in cents: acknowledged net change, and the bounds of operations whose outcome is unknown
+    private final AtomicLongArray ackedNet;
+    private final AtomicLongArray unknownDeposits;
+    private final AtomicLongArray unknownWithdrawals;
+
+    // from the scheduled send time: what a client sees
+    private final Histogram operationLatency = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Histogram balanceLatency = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    // from the actual send time: what the service reports, hides queueing in the generator and the server
+    private final Histogram operationServiceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+    private final Histogram balanceServiceTime = new ConcurrentHistogram(HIGHEST_TRACKABLE_MICROS, 3);
+
+    private final Map<String, LongAdder> outcomes = new ConcurrentHashMap<>();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder dropped = new LongAdder();
+
+    private LoadGenerator(LoadTestOptions options) {
+        this.options = options;
+        this.clientExecutor = Executors.newFixedThreadPool(options.clientThreads());
+        this.httpClient = HttpClient.newBuilder()
+                .executor(clientExecutor)
+                .connectTimeout(Duration.ofSeconds(5))
+                .build();
+        this.inFlight = new Semaphore(options.maxInFlight());
+        this.ackedNet = new AtomicLongArray(options.wallets());
+        this.unknownDeposits = new AtomicLongArray(options.wallets());
+        this.unknownWithdrawals = new AtomicLongArray(options.wallets());
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadTestOptions options = LoadTestOptions.fromSystemProperties();
+        LoadGenerator generator = new LoadGenerator(options);
+        boolean passed;
+        try {
+            passed = generator.run();
+        } finally {
+            generator.clientExecutor.shutdownNow();
+        }
+        System.exit(passed ? 0 : 1);
+    }
+
+    private boolean run() throws Exception {
+        seedWallets();
+        System.out.printf("Seeded %d wallets with %s each, %d hot wallets get %.0f%% of the traffic%n",
+                options.wallets(), options.initialBalance(), options.hotWallets(), options.hotShare() * 100);
+        System.out.printf("Driving %s at %d req/s for %s after %s of warmup%n",
+                options.baseUrl(), options.rate(), options.duration(), options.warmup());
+
+        drive();
+
+        System.out.println("Waiting for outstanding requests");
+        if (!inFlight.tryAcquire(options.maxInFlight(), options.requestTimeout().toMillis() + 5000, TimeUnit.MILLISECONDS)) {
+            System.out.println("Some requests never completed");
+        }
+
+        report(System.out);
+        writeHistograms();
+
+        boolean passed = checkInvariants();
+        if (dropped.sum() > 0) {
+            System.out.printf("FAIL: %d requests were dropped, the generator couldn't keep the schedule%n", dropped.sum());
+            passed = false;
+        }
+        passed &= withinLimit("operation", operationLatency);
+        passed &= withinLimit("balance read", balanceLatency);
+        System.out.println(passed ? "PASSED" : "FAILED");
+        return passed;
+    }
+
+    private boolean withinLimit(String name, Histogram latency) {
+        long p99 = TimeUnit.MICROSECONDS.toMillis(latency.getValueAtPercentile(99));
+        if (options.maxP99Millis() > 0 && p99 > options.maxP99Millis()) {
+            System.out.printf("FAIL: %s p99 %d ms is above the %d ms limit%n", name, p99, options.maxP99Millis());
+            return false;
+        }
+        return true;
+    }
+
+    private void drive() {
+        SplittableRandom random = new SplittableRandom();
+        long intervalNanos = TimeUnit.SECONDS.toNanos(1) / options.rate();
+        long start = System.nanoTime();
+        long measureFrom = start + options.warmup().toNanos();
+        long end = measureFrom + options.duration().toNanos();
+        long nextProgress = start + TimeUnit.SECONDS.toNanos(5);
+
+        for (long i = 0; ; i++) {
+            long scheduled = start + i * intervalNanos;
+            if (scheduled >= end) {
+                break;
+            }
+            long wait;
+            while ((wait = scheduled - System.nanoTime()) > 0) { // behind schedule: send right away, don't skip
+                LockSupport.parkNanos(wait);
+            }
+            if (!inFlight.tryAcquire()) {
+                dropped.increment();
+                continue;
+            }
+            send(random, scheduled, scheduled >= measureFrom);
+
+            if (scheduled >= nextProgress) {
+                System.out.printf("  %3ds: sent %d, completed %d, in flight %d, dropped %d%n",
+                        TimeUnit.NANOSECONDS.toSeconds(scheduled - start), sent.sum(), completed.sum(),
+                        options.maxInFlight() - inFlight.availablePermits(), dropped.sum());
+                nextProgress += TimeUnit.SECONDS.toNanos(5);
+            }
+        }
+    }
+
+    private void send(SplittableRandom random, long scheduled, boolean measured) {
+        int wallet = pickWallet(random);
+        UUID walletId = walletIds.get(wallet);
+        sent.increment();
+
+        if (random.nextDouble() < options.readRatio()) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(options.baseUrl() + "/api/v1/wallets/" + walletId))
+                    .timeout(options.requestTimeout())
+                    .GET()
+                    .build();
+            long sentAt = System.nanoTime();
+            httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                    .whenComplete((response, failure) -> {
+                        record(measured, scheduled, sentAt, balanceLatency, balanceServiceTime);
+                        count("GET " + (failure != null ? failure.getClass().getSimpleName() : response.statusCode()));
+                    });
+            return;
+        }
+
+        boolean withdraw = random.nextDouble() < options.withdrawRatio();
+        long maxCents = options.maxAmount().movePointRight(2).longValueExact();
+        long cents = 1 + random.nextLong(maxCents);
+        String body = String.format("{\"walletId\":\"%s\",\"operationType\":\"%s\",\"amount\":%s}",
+                walletId, withdraw ? "WITHDRAW" : "DEPOSIT", BigDecimal.valueOf(cents, 2).toPlainString());
+        HttpRequest request = HttpRequest.newBuilder(URI.create(options.baseUrl() + "/api/v1/wallet"))
+                .timeout(options.requestTimeout())
+                .header("Content-Type", "application/json")
+                .header("X-Request-Timeout", String.valueOf(options.requestTimeout().toMillis()))
+                .POST(HttpRequest.BodyPublishers.ofString(body))
+                .build();
+        long sentAt = System.nanoTime();
+        httpClient.sendAsync(request, HttpResponse.BodyHandlers.discarding())
+                .whenComplete((response, failure) -> {
+                    record(measured, scheduled, sentAt, operationLatency, operationServiceTime);
+                    String operation = withdraw ? "WITHDRAW " : "DEPOSIT ";
+                    if (failure != null) { // timed out or connection lost: may or may not have been applied
+                        (withdraw ? unknownWithdrawals : unknownDeposits).addAndGet(wallet, cents);
+                        count(operation + failure.getClass().getSimpleName());
+                        return;
+                    }
+                    int status = response.statusCode();
+                    if (status == 200) {
+                        ackedNet.addAndGet(wallet, withdraw ? -cents : cents);
+                    } else if (status >= 500 && status != 503) { // only 503 is known to roll back; a 504 may come
+                        // from a forward that timed out after the owner applied the operation
+                        (withdraw ? unknownWithdrawals : unknownDeposits).addAndGet(wallet, cents);
+                    }
+                    count(operation + status);
+                });
+    }
+
+    private void record(boolean measured, long scheduled, long sentAt, Histogram latency, Histogram serviceTime) {
+        long now = System.nanoTime();
+        if (measured) {
+            latency.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(now - scheduled)));
+            serviceTime.recordValue(Math.min(HIGHEST_TRACKABLE_MICROS, TimeUnit.NANOSECONDS.toMicros(now - sentAt)));
+        }
+        completed.increment();
+        inFlight.release();
+    }
+
+    private void count(String outcome) {
+        outcomes.computeIfAbsent(outcome, key -> new LongAdder()).increment();
+    }
+
+    private int pickWallet(SplittableRandom random) {
+        if (options.hotWallets() > 0 && random.nextDouble() < options.hotShare()) {
+            return random.nextInt(options.hotWallets());
+        }
+        return random.nextInt(options.wallets());
+    }
+
+    // wallets have no create endpoint, the run inserts its own so the invariant check starts from known balances
+    private void seedWallets() throws SQLException {
+        try (Connection connection = DriverManager.getConnection(options.dbUrl(), options.dbUser(), options.dbPassword());
+             PreparedStatement insert = connection.prepareStatement(
+                     "INSERT INTO wallets (id, balance, currency, created_at, updated_at) VALUES (?, ?, 'RUB', ?, ?)")) {
+            connection.setAutoCommit(false);
+            Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+            for (int i = 0; i < options.wallets(); i++) {
+                UUID walletId = UUID.randomUUID();
+                walletIds.add(walletId);
+                insert.setObject(1, walletId);
+                insert.setBigDecimal(2, options.initialBalance());
+                insert.setTimestamp(3, now);
+                insert.setTimestamp(4, now);
+                insert.addBatch();
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+    }
+
+    // balances are read through the API, with write-behind or cluster routing the database alone may lag behind
+    private boolean checkInvariants() throws IOException, InterruptedException {
+        long initialCents = options.initialBalance().movePointRight(2).longValueExact();
+        long expectedTotal = 0;
+        long actualTotal = 0;
+        long unknownTotal = 0;
+        int mismatches = 0;
+        int negative = 0;
+
+        for (int wallet = 0; wallet < walletIds.size(); wallet++) {
+            HttpRequest request = HttpRequest.newBuilder(URI.create(options.baseUrl() + "/api/v1/wallets/" + walletIds.get(wallet)))
+                    .timeout(options.requestTimeout())
+                    .GET()
+                    .build();
+            HttpResponse<String> response = httpClient.send(request, HttpResponse.BodyHandlers.ofString());
+            if (response.statusCode() != 200) {
+                System.out.printf("FAIL: reading wallet %s returned %d%n", walletIds.get(wallet), response.statusCode());
+                return false;
+            }
+            JsonNode balance = objectMapper.readTree(response.body()).get("balance");
+            long actual = balance.decimalValue().setScale(2, RoundingMode.UNNECESSARY).movePointRight(2).longValueExact();
+
+            long expected = initialCents + ackedNet.get(wallet);
+            long low = expected - unknownWithdrawals.get(wallet);
+            long high = expected + unknownDeposits.get(wallet);
+            if (actual < low || actual > high) {
+                if (mismatches++ < 10) {
+                    System.out.printf("  wallet %s: balance %s, expected %s%s%n", walletIds.get(wallet),
+                            BigDecimal.valueOf(actual, 2), BigDecimal.valueOf(expected, 2),
+                            low == high ? "" : " (between " + BigDecimal.valueOf(low, 2) + " and " + BigDecimal.valueOf(high, 2) + ")");
+                }
+            }
+            if (actual < 0) {
+                negative++;
+            }
+            expectedTotal += expected;
+            actualTotal += actual;
+            unknownTotal += unknownDeposits.get(wallet) + unknownWithdrawals.get(wallet);
+        }
+
+        System.out.printf("%nInvariants: sum of balances %s, initial balances plus acknowledged net deposits %s, "
+                        + "unknown outcomes worth %s%n",
+                BigDecimal.valueOf(actualTotal, 2), BigDecimal.valueOf(expectedTotal, 2), BigDecimal.valueOf(unknownTotal, 2));
+        boolean passed = true;
+        if (mismatches > 0) {
+            System.out.printf("FAIL: %d wallets don't match their acknowledged operations%n", mismatches);
+            passed = false;
+        }
+        if (negative > 0) {
+            System.out.printf("FAIL: %d wallets have a negative balance%n", negative);
+            passed = false;
+        }
+        return passed;
+    }
+
+    private void report(PrintStream out) {
+        out.printf("%nSent %d, completed %d, dropped %d%n", sent.sum(), completed.sum(), dropped.sum());
+        outcomes.entrySet().stream()
+                .sorted(Map.Entry.comparingByKey())
+                .forEach(entry -> out.printf("  %-32s %d%n", entry.getKey(), entry.getValue().sum()));
+
+        out.printf("%nLatency in ms (%d req/s)         p50       p90       p99     p99.9    p99.99       max%n", options.rate());
+        printRow(out, "operations, corrected", operationLatency);
+        printRow(out, "operations, service time", operationServiceTime);
+        printRow(out, "balance reads, corrected", balanceLatency);
+        printRow(out, "balance reads, service time", balanceServiceTime);
+    }
+
+    private static void printRow(PrintStream out, String name, Histogram histogram) {
+        out.printf("  %-30s %9.2f %9.2f %9.2f %9.2f %9.2f %9.2f%n", name,
+                millis(histogram.getValueAtPercentile(50)), millis(histogram.getValueAtPercentile(90)),
+                millis(histogram.getValueAtPercentile(99)), millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getValueAtPercentile(99.99)), millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long micros) {
+        return micros / 1000.0;
+    }
+
+    // percentile distributions for HdrHistogram's plotter, one file per histogram
+    private void writeHistograms() throws IOException {
+        Files.createDirectories(options.reportDir());
+        write("operations-corrected.hgrm", operationLatency);
+        write("operations-service-time.hgrm", operationServiceTime);
+        write("balance-reads-corrected.hgrm", balanceLatency);
+        write("balance-reads-service-time.hgrm", balanceServiceTime);
+        System.out.printf("Histograms written to %s%n", options.reportDir().toAbsolutePath());
+    }
+
+    private void write(String fileName, Histogram histogram) throws IOException {
+        try (PrintStream out = new PrintStream(Files.newOutputStream(options.reportDir().resolve(fileName)))) {
+            histogram.outputPercentileDistribution(out, 1000.0); // microseconds recorded, milliseconds in the file
+        }
+    }
+}
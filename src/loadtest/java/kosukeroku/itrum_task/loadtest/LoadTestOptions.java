@@ -0,0 +1,59 @@
+package kosukeroku.itrum_task.loadtest;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+
+// read from -Pload.<name>=<value> on the Gradle command line, see the loadTest task
+record LoadTestOptions(
+        String baseUrl,
+        String dbUrl,
+        String dbUser,
+        String dbPassword,
+        int rate,                  // requests per second, sent on schedule whether or not earlier ones completed
+        Duration duration,
+        Duration warmup,           // sent and checked, but not recorded in the histograms
+        int wallets,
+        int hotWallets,
+        double hotShare,           // share of requests going to the hot wallets
+        double readRatio,          // share of balance reads, the rest are operations
+        double withdrawRatio,      // share of withdrawals among operations
+        BigDecimal initialBalance,
+        BigDecimal maxAmount,
+        Duration requestTimeout,
+        int maxInFlight,           // beyond this the generator can't keep the schedule and the run is invalid
+        int clientThreads,
+        long maxP99Millis,         // corrected p99 limit for operations and reads alike, 0 disables the gate
+        Path reportDir) {
+
+    static LoadTestOptions fromSystemProperties() {
+        LoadTestOptions options = new LoadTestOptions(
+                string("base-url", "http://localhost:8081"),
+                string("db-url", "jdbc:postgresql://localhost:5433/wallet_db"),
+                string("db-user", "wallet_user"),
+                string("db-password", "wallet_pass"),
+                Integer.parseInt(string("rate", "200")),
+                Duration.parse("PT" + string("duration", "60s")),
+                Duration.parse("PT" + string("warmup", "10s")),
+                Integer.parseInt(string("wallets", "1000")),
+                Integer.parseInt(string("hot-wallets", "10")),
+                Double.parseDouble(string("hot-share", "0.5")),
+                Double.parseDouble(string("read-ratio", "0.2")),
+                Double.parseDouble(string("withdraw-ratio", "0.4")),
+                new BigDecimal(string("initial-balance", "1000.00")),
+                new BigDecimal(string("max-amount", "100.00")),
+                Duration.parse("PT" + string("request-timeout", "10s")),
+                Integer.parseInt(string("max-in-flight", "10000")),
+                Integer.parseInt(string("client-threads", "32")),
+                Long.parseLong(string("max-p99-ms", "0")),
+                Path.of(string("report-dir", "build/reports/loadtest")));
+        if (options.rate <= 0 || options.wallets <= 0 || options.hotWallets < 0 || options.hotWallets > options.wallets) {
+            throw new IllegalArgumentException("load.rate and load.wallets must be positive, load.hot-wallets at most load.wallets");
+        }
+        return options;
+    }
+
+    private static String string(String name, String defaultValue) {
+        return System.getProperty("load." + name, defaultValue);
+    }
+}
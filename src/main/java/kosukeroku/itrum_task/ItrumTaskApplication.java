@@ -1,13 +1,22 @@
 package kosukeroku.itrum_task;
 
+import kosukeroku.itrum_task.config.MigrationJobConfiguration;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.context.properties.ConfigurationPropertiesScan;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Profiles;
 
 @SpringBootApplication
+@ConfigurationPropertiesScan
 public class ItrumTaskApplication {
 
     public static void main(String[] args) {
-        SpringApplication.run(ItrumTaskApplication.class, args);
+        ConfigurableApplicationContext context = SpringApplication.run(ItrumTaskApplication.class, args);
+        // the migration job is done once the context is up, its exit code tells the orchestrator whether it worked
+        if (context.getEnvironment().acceptsProfiles(Profiles.of(MigrationJobConfiguration.PROFILE))) {
+            System.exit(SpringApplication.exit(context));
+        }
     }
 
 }
@@ -0,0 +1,32 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "wallet.cluster")
+public class ClusterProperties {
+
+    public enum Routing {
+        FORWARD,  // proxy the request to the owner and relay its response
+        REDIRECT  // answer 307 with the owner's URL, the client repeats the request there
+    }
+
+    private boolean enabled = false;
+
+    private String nodeId = "local";
+
+    private String advertisedUrl = "http://localhost:8081"; // how other nodes reach this one
+
+    private int shardCount = 256; // wallets hash onto shards, shards are what nodes lease
+
+    private Duration leaseDuration = Duration.ofSeconds(10); // also the heartbeat age after which a node counts as dead
+
+    private Routing routing = Routing.FORWARD;
+
+    private Duration forwardTimeout = Duration.ofSeconds(5);
+
+    private int localLockStripes = 1024; // owned wallets queue here instead of in Postgres, without holding a connection
+}
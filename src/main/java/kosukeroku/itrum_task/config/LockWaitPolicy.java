@@ -0,0 +1,7 @@
+package kosukeroku.itrum_task.config;
+
+public enum LockWaitPolicy {
+    TIMEOUT,     // wait for the row lock up to wallet.lock.timeout (SET LOCAL lock_timeout)
+    NOWAIT,      // fail immediately if the row is locked (FOR UPDATE NOWAIT)
+    SKIP_LOCKED  // skip the locked row and report the wallet as busy (FOR UPDATE SKIP LOCKED)
+}
@@ -0,0 +1,21 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Profile;
+
+@Slf4j
+@Configuration
+@Profile(MigrationJobConfiguration.PROFILE)
+public class MigrationJobConfiguration {
+
+    public static final String PROFILE = "migrate";
+
+    // Liquibase has already run during context refresh, ItrumTaskApplication.main closes the context and exits
+    @Bean
+    public ApplicationRunner reportMigration() {
+        return args -> log.info("Database migration finished, shutting down");
+    }
+}
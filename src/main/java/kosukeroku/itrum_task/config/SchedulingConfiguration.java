@@ -0,0 +1,14 @@
+package kosukeroku.itrum_task.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+// background jobs (hold sweeper, archiver, limiter eviction, write-behind flush, cluster heartbeat), each on its
+// own thread of spring.task.scheduling.pool; the one-shot migrate job switches them off so none of them touches
+// the database while it runs
+@Configuration
+@EnableScheduling
+@ConditionalOnProperty(prefix = "wallet.scheduling", name = "enabled", havingValue = "true", matchIfMissing = true)
+public class SchedulingConfiguration {
+}
@@ -0,0 +1,17 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "wallet.archive")
+public class WalletArchiveProperties {
+
+    private boolean enabled = false; // off by default, each run scans for idle wallets and locks the ones it moves
+
+    private Duration idleThreshold = Duration.ofDays(90); // wallets not changed for this long are archived
+
+    private int batchSize = 1000; // wallets moved per archiver transaction
+}
@@ -0,0 +1,15 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "wallet.holds")
+public class WalletHoldProperties {
+
+    private Duration ttl = Duration.ofDays(7); // an uncaptured hold is released after this
+
+    private int sweepBatchSize = 500; // expired holds released per sweeper transaction
+}
@@ -0,0 +1,38 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+@Data
+@ConfigurationProperties(prefix = "wallet.limits")
+public class WalletLimitProperties {
+
+    private boolean enabled = false;
+
+    private Duration window = Duration.ofMinutes(1); // sliding, approximated from the current and the previous window
+
+    private int shards = 64; // independent locks, operations on different wallets rarely wait for each other
+
+    private int maxWalletsPerShard = 10_000; // least recently used wallets are dropped beyond this
+
+    private Duration idleEviction = Duration.ofMinutes(10); // should be longer than the window, or limits reset early
+
+    private String defaultTier = "standard"; // used for tiers without limits configured
+
+    private Map<String, TierLimits> tiers = new HashMap<>(); // keyed by wallets.tier in lower case
+
+    @Data
+    public static class TierLimits {
+
+        private int maxOperations; // zero means unlimited
+
+        private int maxWithdrawals;
+
+        private BigDecimal maxWithdrawalAmount; // in the wallet's base currency, sub-ledgers aren't counted; null means unlimited
+    }
+}
@@ -0,0 +1,17 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "wallet.lock")
+public class WalletLockProperties {
+
+    private LockWaitPolicy waitPolicy = LockWaitPolicy.TIMEOUT;
+
+    private Duration timeout = Duration.ofSeconds(2); // zero or negative means waiting without a limit
+
+    private Duration retryAfter = Duration.ofSeconds(1); // hint returned to clients in the Retry-After header
+}
@@ -0,0 +1,27 @@
+package kosukeroku.itrum_task.config;
+
+import lombok.Data;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+@Data
+@ConfigurationProperties(prefix = "wallet.write-behind")
+public class WriteBehindProperties {
+
+    private boolean enabled = false;
+
+    private String nodeId = "local"; // checkpoint key, every node has its own log directory and checkpoint
+
+    private Path directory = Path.of("data/wal");
+
+    private DataSize segmentSize = DataSize.ofMegabytes(64);
+
+    private Duration groupCommitInterval = Duration.ofMillis(2); // fsync cadence, acknowledgements wait for it
+
+    private int flushBatchSize = 1000; // log entries applied to the database per transaction
+
+    private Duration idleEviction = Duration.ofMinutes(5); // fully flushed wallets idle this long leave the cache
+}
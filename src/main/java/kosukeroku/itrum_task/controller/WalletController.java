@@ -1,14 +1,27 @@
 package kosukeroku.itrum_task.controller;
 
 import jakarta.validation.Valid;
+import kosukeroku.itrum_task.dto.RollupGranularity;
+import kosukeroku.itrum_task.dto.WalletActivityResponseDTO;
+import kosukeroku.itrum_task.dto.WalletBalancesResponseDTO;
 import kosukeroku.itrum_task.dto.WalletRequestDTO;
 import kosukeroku.itrum_task.dto.WalletResponseDTO;
+import kosukeroku.itrum_task.dto.WalletTransactionPageDTO;
+import kosukeroku.itrum_task.exception.InsufficientFundsException;
+import kosukeroku.itrum_task.service.RequestDeadline;
+import kosukeroku.itrum_task.service.WalletActivityService;
 import kosukeroku.itrum_task.service.WalletService;
+import kosukeroku.itrum_task.service.WalletTransactionService;
+import kosukeroku.itrum_task.service.WalletVelocityLimiter;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindLedger;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.format.annotation.DateTimeFormat;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 
+import java.time.LocalDateTime;
 import java.util.UUID;
 
 @Slf4j
@@ -17,12 +30,34 @@ import java.util.UUID;
 @RequiredArgsConstructor
 public class WalletController {
 
+    public static final String REQUEST_TIMEOUT_HEADER = "X-Request-Timeout"; // client's remaining budget in milliseconds
+
     private final WalletService walletService;
+    private final WalletTransactionService walletTransactionService;
+    private final WalletActivityService walletActivityService;
+    private final ObjectProvider<WriteBehindLedger> writeBehindLedger; // present when wallet.write-behind.enabled
+    private final ObjectProvider<WalletVelocityLimiter> velocityLimiter; // present when wallet.limits.enabled
 
     @PostMapping("/wallet")
-    public ResponseEntity<WalletResponseDTO> processOperation(@Valid @RequestBody WalletRequestDTO request) {
-        log.debug("Received request: POST /wallet - {}", request);
-        WalletResponseDTO response = walletService.processOperation(request);
+    public ResponseEntity<WalletResponseDTO> processOperation(
+            @Valid @RequestBody WalletRequestDTO request,
+            @RequestHeader(name = REQUEST_TIMEOUT_HEADER, required = false) Long timeoutMillis) {
+        log.debug("Received request: POST /wallet - {}, timeout = {}ms", request, timeoutMillis);
+        RequestDeadline deadline = RequestDeadline.ofTimeoutMillis(timeoutMillis);
+        WalletVelocityLimiter limiter = velocityLimiter.getIfAvailable();
+        WalletVelocityLimiter.Permit permit = limiter != null ? limiter.acquire(request) : () -> { };
+        WriteBehindLedger ledger = writeBehindLedger.getIfAvailable();
+        WalletResponseDTO response;
+        try {
+            response = ledger != null
+                    ? ledger.processOperation(request, deadline)
+                    : walletService.processOperation(request, deadline);
+        } catch (InsufficientFundsException ex) { // rejected but evaluated, still counts as an attempt
+            throw ex;
+        } catch (RuntimeException ex) { // nothing was evaluated, e.g. lock or deadline timeouts the client retries
+            permit.release();
+            throw ex;
+        }
         log.debug("Response: {}", response);
         return ResponseEntity.ok(response);
     }
@@ -30,7 +65,39 @@ public class WalletController {
     @GetMapping("/wallets/{walletId}")
     public ResponseEntity<WalletResponseDTO> getBalance(@PathVariable UUID walletId) {
         log.debug("Received request: GET /wallets/{}", walletId);
-        WalletResponseDTO response = walletService.getBalance(walletId);
+        WriteBehindLedger ledger = writeBehindLedger.getIfAvailable();
+        WalletResponseDTO response = ledger != null ? ledger.getBalance(walletId) : walletService.getBalance(walletId);
+        log.debug("Response: {}", response);
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/wallets/{walletId}/balances")
+    public ResponseEntity<WalletBalancesResponseDTO> getAllBalances(@PathVariable UUID walletId) {
+        log.debug("Received request: GET /wallets/{}/balances", walletId);
+        WalletBalancesResponseDTO response = walletService.getAllBalances(walletId);
+        log.debug("Response: {}", response);
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/wallets/{walletId}/transactions")
+    public ResponseEntity<WalletTransactionPageDTO> getTransactions(
+            @PathVariable UUID walletId,
+            @RequestParam(required = false) String cursor,
+            @RequestParam(defaultValue = "" + WalletTransactionService.DEFAULT_PAGE_SIZE) int limit) {
+        log.debug("Received request: GET /wallets/{}/transactions - cursor = {}, limit = {}", walletId, cursor, limit);
+        WalletTransactionPageDTO response = walletTransactionService.getTransactions(walletId, cursor, limit);
+        log.debug("Response: {}", response);
+        return ResponseEntity.ok(response);
+    }
+
+    @GetMapping("/wallets/{walletId}/activity")
+    public ResponseEntity<WalletActivityResponseDTO> getActivity(
+            @PathVariable UUID walletId,
+            @RequestParam(defaultValue = "HOUR") RollupGranularity granularity,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime from,
+            @RequestParam(required = false) @DateTimeFormat(iso = DateTimeFormat.ISO.DATE_TIME) LocalDateTime to) {
+        log.debug("Received request: GET /wallets/{}/activity - granularity = {}, from = {}, to = {}", walletId, granularity, from, to);
+        WalletActivityResponseDTO response = walletActivityService.getActivity(walletId, granularity, from, to);
         log.debug("Response: {}", response);
         return ResponseEntity.ok(response);
     }
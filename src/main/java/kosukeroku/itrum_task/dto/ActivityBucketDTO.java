@@ -0,0 +1,22 @@
+package kosukeroku.itrum_task.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class ActivityBucketDTO {
+    private LocalDateTime bucketStart;
+    private String currency;
+    private long depositCount;
+    private BigDecimal depositAmount;
+    private long withdrawalCount;
+    private BigDecimal withdrawalAmount;
+}
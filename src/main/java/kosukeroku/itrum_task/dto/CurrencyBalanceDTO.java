@@ -0,0 +1,17 @@
+package kosukeroku.itrum_task.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class CurrencyBalanceDTO {
+    private String currency;
+    private BigDecimal balance;
+}
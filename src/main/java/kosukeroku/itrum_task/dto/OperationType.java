@@ -1,6 +1,9 @@
 package kosukeroku.itrum_task.dto;
 
-public enum OperationType {
+public enum OperationType { // ordinals are persisted in the write-ahead log, only ever append
     DEPOSIT,
-    WITHDRAW
-}
\ No newline at end of file
+    WITHDRAW,
+    HOLD,    // reserves funds, the balance stays and the available balance drops
+    CAPTURE, // takes up to the held amount from the balance, the rest of the hold is released
+    RELEASE  // gives held funds back to the available balance
+}
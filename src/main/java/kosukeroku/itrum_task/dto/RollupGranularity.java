@@ -0,0 +1,16 @@
+package kosukeroku.itrum_task.dto;
+
+public enum RollupGranularity {
+    HOUR("hour"),
+    DAY("day");
+
+    private final String unit;
+
+    RollupGranularity(String unit) {
+        this.unit = unit;
+    }
+
+    public String getUnit() { // date_trunc field name
+        return unit;
+    }
+}
@@ -0,0 +1,22 @@
+package kosukeroku.itrum_task.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletActivityResponseDTO {
+    private UUID id;
+    private RollupGranularity granularity;
+    private LocalDateTime from;
+    private LocalDateTime to;
+    private List<ActivityBucketDTO> buckets; // only buckets with activity, oldest first
+}
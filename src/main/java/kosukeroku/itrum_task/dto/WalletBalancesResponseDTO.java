@@ -0,0 +1,18 @@
+package kosukeroku.itrum_task.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+import java.util.UUID;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletBalancesResponseDTO {
+    private UUID id;
+    private List<CurrencyBalanceDTO> balances; // base currency first
+}
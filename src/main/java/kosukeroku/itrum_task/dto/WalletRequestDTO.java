@@ -1,6 +1,8 @@
 package kosukeroku.itrum_task.dto;
 
+import jakarta.validation.constraints.Digits;
 import jakarta.validation.constraints.NotNull;
+import jakarta.validation.constraints.Pattern;
 import jakarta.validation.constraints.Positive;
 import lombok.AllArgsConstructor;
 import lombok.Builder;
@@ -24,5 +26,11 @@ public class WalletRequestDTO {
 
     @NotNull(message = "Amount is required")
     @Positive(message = "Amount must be positive")
+    @Digits(integer = 17, fraction = 2, message = "Amount must have at most 17 integer digits and 2 decimal places")
     private BigDecimal amount;
+
+    @Pattern(regexp = "[A-Z]{3}", message = "Currency must be an ISO 4217 code")
+    private String currency; // optional, wallet's base currency when absent
+
+    private UUID holdId; // required for CAPTURE and RELEASE, returned by HOLD
 }
\ No newline at end of file
@@ -16,4 +16,7 @@ import java.util.UUID;
 public class WalletResponseDTO {
     private UUID id;
     private BigDecimal balance;
+    private BigDecimal availableBalance; // balance minus active holds
+    private String currency;
+    private UUID holdId; // set for hold operations
 }
\ No newline at end of file
@@ -0,0 +1,25 @@
+package kosukeroku.itrum_task.dto;
+
+import kosukeroku.itrum_task.model.TransactionStatus;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletTransactionDTO {
+    private UUID id;
+    private OperationType operationType;
+    private BigDecimal amount;
+    private String currency;
+    private BigDecimal balanceAfter;
+    private TransactionStatus status;
+    private LocalDateTime createdAt;
+}
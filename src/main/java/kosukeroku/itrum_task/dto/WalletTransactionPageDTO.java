@@ -0,0 +1,17 @@
+package kosukeroku.itrum_task.dto;
+
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.util.List;
+
+@Data
+@Builder
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletTransactionPageDTO {
+    private List<WalletTransactionDTO> transactions; // newest first
+    private String nextCursor; // null on the last page
+}
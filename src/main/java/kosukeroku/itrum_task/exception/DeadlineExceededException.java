@@ -0,0 +1,9 @@
+package kosukeroku.itrum_task.exception;
+
+import java.util.UUID;
+
+public class DeadlineExceededException extends RuntimeException {
+    public DeadlineExceededException(UUID walletId) {
+        super("Request deadline exceeded before operation on wallet " + walletId + " could complete");
+    }
+}
@@ -1,8 +1,13 @@
 package kosukeroku.itrum_task.exception;
 
+import kosukeroku.itrum_task.config.WalletLockProperties;
 import kosukeroku.itrum_task.dto.ErrorResponseDTO;
 import jakarta.servlet.http.HttpServletRequest;
+import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.dao.QueryTimeoutException;
+import org.springframework.http.HttpHeaders;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.http.converter.HttpMessageNotReadableException;
@@ -12,11 +17,15 @@ import org.springframework.web.bind.annotation.RestControllerAdvice;
 import org.springframework.web.method.annotation.MethodArgumentTypeMismatchException;
 
 import java.time.LocalDateTime;
+import java.util.UUID;
 
 @Slf4j
 @RestControllerAdvice
+@RequiredArgsConstructor
 public class GlobalExceptionHandler {
 
+    private final WalletLockProperties lockProperties;
+
     // 404 wallet not found
     @ExceptionHandler(WalletNotFoundException.class)
     public ResponseEntity<ErrorResponseDTO> handleWalletNotFound(WalletNotFoundException ex, HttpServletRequest request) {
@@ -32,6 +41,21 @@ public class GlobalExceptionHandler {
         return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
     }
 
+    // 404 hold not found on the wallet
+    @ExceptionHandler(HoldNotFoundException.class)
+    public ResponseEntity<ErrorResponseDTO> handleHoldNotFound(HoldNotFoundException ex, HttpServletRequest request) {
+        log.error("Hold not found: {}", ex.getMessage());
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.NOT_FOUND.value())
+                .error("Hold Not Found")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.NOT_FOUND).body(response);
+    }
+
     // 400 insufficient funds
     @ExceptionHandler(InsufficientFundsException.class)
     public ResponseEntity<ErrorResponseDTO> handleInsufficientFunds(InsufficientFundsException ex, HttpServletRequest request) {
@@ -48,6 +72,140 @@ public class GlobalExceptionHandler {
         return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
     }
 
+    // 400 capture or release of a finished hold, more than is held, or a hold outside the base currency
+    @ExceptionHandler(InvalidHoldOperationException.class)
+    public ResponseEntity<ErrorResponseDTO> handleInvalidHoldOperation(InvalidHoldOperationException ex, HttpServletRequest request) {
+        log.error("Invalid hold operation: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.BAD_REQUEST.value())
+                .error("Invalid Request")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+    }
+
+    // 400 malformed or tampered pagination cursor
+    @ExceptionHandler(InvalidCursorException.class)
+    public ResponseEntity<ErrorResponseDTO> handleInvalidCursor(InvalidCursorException ex, HttpServletRequest request) {
+        log.error("Invalid cursor: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.BAD_REQUEST.value())
+                .error("Invalid Request")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+    }
+
+    // 400 empty or inverted analytics time range
+    @ExceptionHandler(InvalidTimeRangeException.class)
+    public ResponseEntity<ErrorResponseDTO> handleInvalidTimeRange(InvalidTimeRangeException ex, HttpServletRequest request) {
+        log.error("Invalid time range: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.BAD_REQUEST.value())
+                .error("Invalid Request")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
+    }
+
+    // 503 wallet row lock not acquired in time, safe to retry since nothing was written
+    @ExceptionHandler(WalletLockTimeoutException.class)
+    public ResponseEntity<ErrorResponseDTO> handleWalletLockTimeout(WalletLockTimeoutException ex, HttpServletRequest request) {
+        log.warn("Wallet lock timeout: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.SERVICE_UNAVAILABLE.value())
+                .error("Wallet Busy")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds())
+                .body(response);
+    }
+
+    // 429 velocity limit of the wallet's tier reached, Retry-After says when the window has moved on
+    @ExceptionHandler(VelocityLimitExceededException.class)
+    public ResponseEntity<ErrorResponseDTO> handleVelocityLimitExceeded(VelocityLimitExceededException ex, HttpServletRequest request) {
+        log.warn("Velocity limit exceeded: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.TOO_MANY_REQUESTS.value())
+                .error("Too Many Requests")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, ex.getRetryAfter().toSeconds() + 1)))
+                .body(response);
+    }
+
+    // 503 lock_not_available or statement_timeout raised outside of the lock acquisition, e.g. while committing
+    @ExceptionHandler({PessimisticLockingFailureException.class, QueryTimeoutException.class})
+    public ResponseEntity<ErrorResponseDTO> handleDatabaseTimeout(RuntimeException ex, HttpServletRequest request) {
+        log.warn("Database timeout: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.SERVICE_UNAVAILABLE.value())
+                .error("Database Timeout")
+                .message("Operation timed out, please retry")
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .header(HttpHeaders.RETRY_AFTER, retryAfterSeconds())
+                .body(response);
+    }
+
+    // 503 local write-ahead log can't make operations durable, the node stops acknowledging them
+    @ExceptionHandler(WriteAheadLogException.class)
+    public ResponseEntity<ErrorResponseDTO> handleWriteAheadLog(WriteAheadLogException ex, HttpServletRequest request) {
+        log.error("Write-ahead log failure: {}", ex.getMessage(), ex);
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.SERVICE_UNAVAILABLE.value())
+                .error("Service Unavailable")
+                .message("Operation could not be made durable")
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE).body(response);
+    }
+
+    // 504 client deadline already passed
+    @ExceptionHandler(DeadlineExceededException.class)
+    public ResponseEntity<ErrorResponseDTO> handleDeadlineExceeded(DeadlineExceededException ex, HttpServletRequest request) {
+        log.warn("Deadline exceeded: {}", ex.getMessage());
+
+        ErrorResponseDTO response = ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(HttpStatus.GATEWAY_TIMEOUT.value())
+                .error("Deadline Exceeded")
+                .message(ex.getMessage())
+                .path(request.getRequestURI())
+                .build();
+
+        return ResponseEntity.status(HttpStatus.GATEWAY_TIMEOUT).body(response);
+    }
+
     // 400 validation errors
     @ExceptionHandler(MethodArgumentNotValidException.class)
     public ResponseEntity<ErrorResponseDTO> handleValidationExceptions(MethodArgumentNotValidException ex, HttpServletRequest request) {
@@ -85,17 +243,24 @@ public class GlobalExceptionHandler {
     public ResponseEntity<ErrorResponseDTO> handleMethodArgumentTypeMismatch(
             MethodArgumentTypeMismatchException ex, HttpServletRequest request) {
 
-        log.error("Invalid UUID format: {}", ex.getValue());
+        String message = ex.getRequiredType() == UUID.class
+                ? "Invalid UUID format: " + ex.getValue()
+                : "Invalid value for " + ex.getName() + ": " + ex.getValue();
+        log.error(message);
 
         ErrorResponseDTO response = ErrorResponseDTO.builder()
                 .timestamp(LocalDateTime.now())
                 .status(HttpStatus.BAD_REQUEST.value())
                 .error("Invalid Request")
-                .message("Invalid UUID format: " + ex.getValue())
+                .message(message)
                 .path(request.getRequestURI())
                 .build();
 
         return ResponseEntity.status(HttpStatus.BAD_REQUEST).body(response);
     }
 
+    private String retryAfterSeconds() {
+        return String.valueOf(Math.max(1, lockProperties.getRetryAfter().toSeconds()));
+    }
+
 }
\ No newline at end of file
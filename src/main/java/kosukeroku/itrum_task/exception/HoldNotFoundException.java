@@ -0,0 +1,9 @@
+package kosukeroku.itrum_task.exception;
+
+import java.util.UUID;
+
+public class HoldNotFoundException extends RuntimeException {
+    public HoldNotFoundException(UUID holdId, UUID walletId) {
+        super(String.format("Hold %s not found on wallet %s", holdId, walletId));
+    }
+}
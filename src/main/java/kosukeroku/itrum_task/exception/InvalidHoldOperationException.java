@@ -0,0 +1,7 @@
+package kosukeroku.itrum_task.exception;
+
+public class InvalidHoldOperationException extends RuntimeException {
+    public InvalidHoldOperationException(String message) {
+        super(message);
+    }
+}
@@ -0,0 +1,9 @@
+package kosukeroku.itrum_task.exception;
+
+import java.time.LocalDateTime;
+
+public class InvalidTimeRangeException extends RuntimeException {
+    public InvalidTimeRangeException(LocalDateTime from, LocalDateTime to) {
+        super(String.format("Invalid time range: from %s must be before to %s", from, to));
+    }
+}
@@ -0,0 +1,17 @@
+package kosukeroku.itrum_task.exception;
+
+import lombok.Getter;
+
+import java.time.Duration;
+import java.util.UUID;
+
+@Getter
+public class VelocityLimitExceededException extends RuntimeException {
+
+    private final Duration retryAfter;
+
+    public VelocityLimitExceededException(UUID walletId, String limit, Duration retryAfter) {
+        super(String.format("Wallet %s exceeded its %s limit", walletId, limit));
+        this.retryAfter = retryAfter;
+    }
+}
@@ -0,0 +1,13 @@
+package kosukeroku.itrum_task.exception;
+
+import java.util.UUID;
+
+public class WalletLockTimeoutException extends RuntimeException {
+    public WalletLockTimeoutException(UUID walletId) {
+        super("Wallet is busy, lock was not acquired in time: " + walletId);
+    }
+
+    public WalletLockTimeoutException(UUID walletId, Throwable cause) {
+        super("Wallet is busy, lock was not acquired in time: " + walletId, cause);
+    }
+}
@@ -0,0 +1,11 @@
+package kosukeroku.itrum_task.exception;
+
+public class WriteAheadLogException extends RuntimeException {
+    public WriteAheadLogException(String message) {
+        super(message);
+    }
+
+    public WriteAheadLogException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
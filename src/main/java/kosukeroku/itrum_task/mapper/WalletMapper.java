@@ -1,12 +1,37 @@
 package kosukeroku.itrum_task.mapper;
 
+import kosukeroku.itrum_task.dto.ActivityBucketDTO;
+import kosukeroku.itrum_task.dto.CurrencyBalanceDTO;
 import kosukeroku.itrum_task.dto.WalletResponseDTO;
+import kosukeroku.itrum_task.dto.WalletTransactionDTO;
+import kosukeroku.itrum_task.model.ArchivedWallet;
 import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WalletBalance;
+import kosukeroku.itrum_task.model.WalletTransaction;
+import kosukeroku.itrum_task.repository.projection.ActivityBucketView;
+import kosukeroku.itrum_task.repository.projection.CurrencyBalanceView;
 import org.mapstruct.Mapper;
+import org.mapstruct.Mapping;
 import org.mapstruct.ReportingPolicy;
 
+import java.util.List;
+
 @Mapper(componentModel = "spring", unmappedTargetPolicy = ReportingPolicy.IGNORE)
 public interface WalletMapper {
 
+    @Mapping(target = "availableBalance", expression = "java(wallet.getBalance().subtract(wallet.getHeldAmount()))")
     WalletResponseDTO toResponseDto(Wallet wallet);
+
+    @Mapping(target = "availableBalance", source = "balance") // only wallets without holds are archived
+    WalletResponseDTO toArchivedResponseDto(ArchivedWallet archivedWallet);
+
+    @Mapping(target = "id", source = "walletId")
+    @Mapping(target = "availableBalance", source = "balance") // holds exist in the base currency only
+    WalletResponseDTO toBalanceResponseDto(WalletBalance walletBalance);
+
+    List<CurrencyBalanceDTO> toCurrencyBalanceDtos(List<CurrencyBalanceView> balances);
+
+    List<WalletTransactionDTO> toTransactionDtos(List<WalletTransaction> transactions);
+
+    List<ActivityBucketDTO> toActivityBucketDtos(List<ActivityBucketView> buckets);
 }
\ No newline at end of file
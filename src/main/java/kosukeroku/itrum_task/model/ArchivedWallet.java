@@ -0,0 +1,42 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// dormant wallet moved out of wallets by WalletArchiver, rows are only ever written by the move queries
+@Entity
+@Table(name = "wallets_archive")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ArchivedWallet {
+
+    @Id
+    @Column(updatable = false, nullable = false)
+    private UUID id;
+
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal balance;
+
+    @Column(length = 3, nullable = false)
+    private String currency;
+
+    @Column(length = 16, nullable = false)
+    private String tier;
+
+    @Column(nullable = false)
+    private LocalDateTime createdAt;
+
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+    @Column(nullable = false)
+    private LocalDateTime archivedAt;
+
+}
@@ -0,0 +1,27 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+@Entity
+@Table(name = "cluster_nodes")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class ClusterNode {
+
+    @Id
+    @Column(length = 64, updatable = false, nullable = false)
+    private String nodeId;
+
+    @Column(nullable = false)
+    private String url;
+
+    @Column(nullable = false)
+    private LocalDateTime heartbeatAt;
+
+}
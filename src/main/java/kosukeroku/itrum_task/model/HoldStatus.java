@@ -0,0 +1,8 @@
+package kosukeroku.itrum_task.model;
+
+public enum HoldStatus {
+    ACTIVE,
+    CAPTURED,
+    RELEASED,
+    EXPIRED // released by the sweeper
+}
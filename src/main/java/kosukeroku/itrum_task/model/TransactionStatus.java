@@ -0,0 +1,6 @@
+package kosukeroku.itrum_task.model;
+
+public enum TransactionStatus {
+    COMPLETED,
+    REJECTED // insufficient funds, balance unchanged
+}
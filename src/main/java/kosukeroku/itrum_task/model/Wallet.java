@@ -4,6 +4,8 @@ import jakarta.persistence.*;
 import lombok.AllArgsConstructor;
 import lombok.Data;
 import lombok.NoArgsConstructor;
+import org.hibernate.annotations.Cache;
+import org.hibernate.annotations.CacheConcurrencyStrategy;
 import org.hibernate.annotations.CreationTimestamp;
 import org.hibernate.annotations.UpdateTimestamp;
 
@@ -13,11 +15,16 @@ import java.util.UUID;
 
 @Entity
 @Table(name = "wallets")
+@Cacheable // findById in getBalance is served from the second-level cache, locking reads always go to the database
+@Cache(usage = CacheConcurrencyStrategy.READ_WRITE, region = "wallets")
 @Data
 @NoArgsConstructor
 @AllArgsConstructor
 public class Wallet {
 
+    public static final String DEFAULT_CURRENCY = "RUB";
+    public static final String DEFAULT_TIER = "STANDARD";
+
     @Id
     @GeneratedValue(strategy = GenerationType.UUID)
     @Column(updatable = false, nullable = false)
@@ -26,6 +33,15 @@ public class Wallet {
     @Column(nullable = false, precision = 19, scale = 2)
     private BigDecimal balance = BigDecimal.ZERO;
 
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal heldAmount = BigDecimal.ZERO; // sum of active holds, not available for withdrawals
+
+    @Column(length = 3, updatable = false, nullable = false)
+    private String currency = DEFAULT_CURRENCY; // base currency of balance, other currencies live in wallet_balances
+
+    @Column(length = 16, nullable = false)
+    private String tier = DEFAULT_TIER; // selects the velocity limits in wallet.limits.tiers
+
     @CreationTimestamp
     @Column(updatable = false, nullable = false)
     private LocalDateTime createdAt;
@@ -0,0 +1,45 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// hourly totals per wallet and currency, maintained incrementally on every completed operation
+@Entity
+@Table(name = "wallet_activity_rollups")
+@IdClass(WalletActivityRollupId.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletActivityRollup {
+
+    @Id
+    @Column(name = "wallet_id", updatable = false, nullable = false)
+    private UUID walletId;
+
+    @Id
+    @Column(updatable = false, nullable = false)
+    private LocalDateTime bucketStart;
+
+    @Id
+    @Column(length = 3, updatable = false, nullable = false)
+    private String currency;
+
+    @Column(nullable = false)
+    private long depositCount;
+
+    @Column(nullable = false, precision = 38, scale = 2)
+    private BigDecimal depositAmount = BigDecimal.ZERO;
+
+    @Column(nullable = false)
+    private long withdrawalCount;
+
+    @Column(nullable = false, precision = 38, scale = 2)
+    private BigDecimal withdrawalAmount = BigDecimal.ZERO;
+
+}
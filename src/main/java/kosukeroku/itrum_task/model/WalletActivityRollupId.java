@@ -0,0 +1,18 @@
+package kosukeroku.itrum_task.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletActivityRollupId implements Serializable {
+    private UUID walletId;
+    private LocalDateTime bucketStart;
+    private String currency;
+}
@@ -0,0 +1,42 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// sub-ledger of a wallet for every currency other than the wallet's base one, one row per (wallet, currency)
+@Entity
+@Table(name = "wallet_balances")
+@IdClass(WalletBalanceId.class)
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletBalance {
+
+    @Id
+    @Column(name = "wallet_id", updatable = false, nullable = false)
+    private UUID walletId;
+
+    @Id
+    @Column(length = 3, updatable = false, nullable = false)
+    private String currency;
+
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal balance = BigDecimal.ZERO;
+
+    @CreationTimestamp
+    @Column(updatable = false, nullable = false)
+    private LocalDateTime createdAt;
+
+    @UpdateTimestamp
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+}
@@ -0,0 +1,16 @@
+package kosukeroku.itrum_task.model;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.io.Serializable;
+import java.util.UUID;
+
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletBalanceId implements Serializable {
+    private UUID walletId;
+    private String currency;
+}
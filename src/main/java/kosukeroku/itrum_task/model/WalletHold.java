@@ -0,0 +1,51 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// changed only while the wallet row is locked, so the row lock on wallets covers its holds too
+@Entity
+@Table(name = "wallet_holds")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletHold {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @Column(updatable = false, nullable = false)
+    private UUID id;
+
+    @Column(name = "wallet_id", updatable = false, nullable = false)
+    private UUID walletId;
+
+    @Column(nullable = false, precision = 19, scale = 2)
+    private BigDecimal amount;
+
+    @Column(length = 3, updatable = false, nullable = false)
+    private String currency;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, nullable = false)
+    private HoldStatus status = HoldStatus.ACTIVE;
+
+    @Column(nullable = false)
+    private LocalDateTime expiresAt;
+
+    @CreationTimestamp
+    @Column(updatable = false, nullable = false)
+    private LocalDateTime createdAt;
+
+    @UpdateTimestamp
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+}
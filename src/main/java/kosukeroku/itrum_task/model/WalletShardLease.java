@@ -0,0 +1,34 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+import java.time.LocalDateTime;
+
+// which node serializes the operations of the wallets hashed onto a shard, valid until expires_at (database time)
+@Entity
+@Table(name = "wallet_shard_leases")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletShardLease {
+
+    @Id
+    @Column(updatable = false, nullable = false)
+    private int shard;
+
+    @Column(length = 64, nullable = false)
+    private String nodeId;
+
+    @Column(nullable = false)
+    private String url;
+
+    @Column(nullable = false)
+    private LocalDateTime expiresAt;
+
+    @Column(nullable = false)
+    private boolean drained = true; // false while the owner may have unflushed write-behind entries of the shard
+
+}
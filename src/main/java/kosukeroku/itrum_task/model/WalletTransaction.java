@@ -0,0 +1,51 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import kosukeroku.itrum_task.dto.OperationType;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.CreationTimestamp;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.UUID;
+
+// append-only history of processOperation outcomes, never updated after insert
+@Entity
+@Table(name = "wallet_transactions")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WalletTransaction {
+
+    @Id
+    @GeneratedValue(strategy = GenerationType.UUID)
+    @Column(updatable = false, nullable = false)
+    private UUID id;
+
+    @Column(name = "wallet_id", updatable = false, nullable = false)
+    private UUID walletId;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, updatable = false, nullable = false)
+    private OperationType operationType;
+
+    @Column(updatable = false, nullable = false, precision = 19, scale = 2)
+    private BigDecimal amount;
+
+    @Column(length = 3, updatable = false, nullable = false)
+    private String currency;
+
+    @Column(updatable = false, nullable = false, precision = 19, scale = 2)
+    private BigDecimal balanceAfter;
+
+    @Enumerated(EnumType.STRING)
+    @Column(length = 16, updatable = false, nullable = false)
+    private TransactionStatus status;
+
+    @CreationTimestamp
+    @Column(updatable = false, nullable = false)
+    private LocalDateTime createdAt;
+
+}
@@ -0,0 +1,30 @@
+package kosukeroku.itrum_task.model;
+
+import jakarta.persistence.*;
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+import org.hibernate.annotations.UpdateTimestamp;
+
+import java.time.LocalDateTime;
+
+// last write-ahead log sequence applied to the database per node, committed together with the applied batch
+@Entity
+@Table(name = "write_behind_checkpoints")
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class WriteBehindCheckpoint {
+
+    @Id
+    @Column(length = 64, updatable = false, nullable = false)
+    private String nodeId;
+
+    @Column(nullable = false)
+    private long appliedSeq;
+
+    @UpdateTimestamp
+    @Column(nullable = false)
+    private LocalDateTime updatedAt;
+
+}
@@ -0,0 +1,61 @@
+package kosukeroku.itrum_task.repository;
+
+import jakarta.persistence.QueryHint;
+import kosukeroku.itrum_task.model.ArchivedWallet;
+import kosukeroku.itrum_task.repository.projection.WalletTierView;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface ArchivedWalletRepository extends JpaRepository<ArchivedWallet, UUID> {
+
+    // the caller holds the row locks, so nothing can add holds or sub-ledgers meanwhile; the conditions are checked
+    // again because this statement sees what committed since the rows were picked, the cascades would drop them.
+    // Both statements declare their tables so only pending changes to those are flushed first; the cache entries of
+    // the moved wallets are evicted by the caller
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.query.native.spaces", value = "wallets"),
+            @QueryHint(name = "org.hibernate.query.native.spaces", value = "wallets_archive")
+    })
+    @Query(value = """
+            WITH moved AS (
+                DELETE FROM wallets w
+                WHERE w.id IN (:ids) AND w.updated_at < :idleSince AND w.held_amount = 0
+                  AND NOT EXISTS (SELECT 1 FROM wallet_balances b WHERE b.wallet_id = w.id)
+                  AND NOT EXISTS (SELECT 1 FROM wallet_holds h WHERE h.wallet_id = w.id)
+                RETURNING w.id, w.balance, w.currency, w.tier, w.created_at, w.updated_at
+            )
+            INSERT INTO wallets_archive (id, balance, currency, tier, created_at, updated_at, archived_at)
+            SELECT id, balance, currency, tier, created_at, updated_at, now() FROM moved
+            RETURNING id
+            """, nativeQuery = true)
+    List<UUID> archive(@Param("ids") Collection<UUID> ids, @Param("idleSince") LocalDateTime idleSince);
+
+    // the restored row stays locked by the caller's transaction until it commits; updated_at is bumped so the
+    // wallet isn't picked by the next archiver run right away
+    @QueryHints({
+            @QueryHint(name = "org.hibernate.query.native.spaces", value = "wallets"),
+            @QueryHint(name = "org.hibernate.query.native.spaces", value = "wallets_archive")
+    })
+    @Query(value = """
+            WITH restored AS (
+                DELETE FROM wallets_archive WHERE id = :id
+                RETURNING id, balance, currency, tier, created_at
+            )
+            INSERT INTO wallets (id, balance, held_amount, currency, tier, created_at, updated_at)
+            SELECT id, balance, 0, currency, tier, created_at, now() FROM restored
+            RETURNING id
+            """, nativeQuery = true)
+    Optional<UUID> restore(@Param("id") UUID id);
+
+    @Query("SELECT a.tier AS tier, a.currency AS currency FROM ArchivedWallet a WHERE a.id = :id")
+    Optional<WalletTierView> findTierById(@Param("id") UUID id);
+
+}
@@ -0,0 +1,29 @@
+package kosukeroku.itrum_task.repository;
+
+import jakarta.persistence.QueryHint;
+import kosukeroku.itrum_task.model.ClusterNode;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.util.List;
+
+public interface ClusterNodeRepository extends JpaRepository<ClusterNode, String> {
+    // database clock only, node clocks don't have to agree
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "cluster_nodes"))
+    @Query(value = """
+            INSERT INTO cluster_nodes (node_id, url, heartbeat_at) VALUES (:nodeId, :url, now())
+            ON CONFLICT (node_id) DO UPDATE SET url = EXCLUDED.url, heartbeat_at = EXCLUDED.heartbeat_at
+            """, nativeQuery = true)
+    int heartbeat(@Param("nodeId") String nodeId, @Param("url") String url);
+
+    @Query(value = """
+            SELECT node_id FROM cluster_nodes
+            WHERE heartbeat_at > now() - :maxAgeMillis * interval '1 millisecond'
+            """, nativeQuery = true)
+    List<String> findLiveNodeIds(@Param("maxAgeMillis") long maxAgeMillis);
+
+}
@@ -0,0 +1,54 @@
+package kosukeroku.itrum_task.repository;
+
+import jakarta.persistence.QueryHint;
+import kosukeroku.itrum_task.model.WalletActivityRollup;
+import kosukeroku.itrum_task.model.WalletActivityRollupId;
+import kosukeroku.itrum_task.repository.projection.ActivityBucketView;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+public interface WalletActivityRollupRepository extends JpaRepository<WalletActivityRollup, WalletActivityRollupId> {
+    // runs under the wallet (or sub-ledger) row lock already held by the operation, so the bucket row never contends;
+    // without a query space Hibernate can't tell which tables a native statement writes and evicts every cache region
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "wallet_activity_rollups"))
+    @Query(value = """
+            INSERT INTO wallet_activity_rollups
+                (wallet_id, bucket_start, currency, deposit_count, deposit_amount, withdrawal_count, withdrawal_amount)
+            VALUES (:walletId, :bucketStart, :currency, :depositCount, :depositAmount, :withdrawalCount, :withdrawalAmount)
+            ON CONFLICT (wallet_id, bucket_start, currency) DO UPDATE SET
+                deposit_count = wallet_activity_rollups.deposit_count + EXCLUDED.deposit_count,
+                deposit_amount = wallet_activity_rollups.deposit_amount + EXCLUDED.deposit_amount,
+                withdrawal_count = wallet_activity_rollups.withdrawal_count + EXCLUDED.withdrawal_count,
+                withdrawal_amount = wallet_activity_rollups.withdrawal_amount + EXCLUDED.withdrawal_amount
+            """, nativeQuery = true)
+    int accumulate(@Param("walletId") UUID walletId, @Param("bucketStart") LocalDateTime bucketStart,
+                   @Param("currency") String currency, @Param("depositCount") long depositCount,
+                   @Param("depositAmount") BigDecimal depositAmount, @Param("withdrawalCount") long withdrawalCount,
+                   @Param("withdrawalAmount") BigDecimal withdrawalAmount);
+
+    // day buckets are folded from at most 24 hourly rows each, a primary key range scan either way
+    @Query(value = """
+            SELECT date_trunc(:unit, r.bucket_start) AS "bucketStart",
+                   r.currency AS "currency",
+                   CAST(SUM(r.deposit_count) AS BIGINT) AS "depositCount",
+                   SUM(r.deposit_amount) AS "depositAmount",
+                   CAST(SUM(r.withdrawal_count) AS BIGINT) AS "withdrawalCount",
+                   SUM(r.withdrawal_amount) AS "withdrawalAmount"
+            FROM wallet_activity_rollups r
+            WHERE r.wallet_id = :walletId AND r.bucket_start >= :from AND r.bucket_start < :to
+            GROUP BY 1, 2
+            ORDER BY 1, 2
+            """, nativeQuery = true)
+    List<ActivityBucketView> findBuckets(@Param("walletId") UUID walletId, @Param("unit") String unit,
+                                         @Param("from") LocalDateTime from, @Param("to") LocalDateTime to);
+
+}
@@ -0,0 +1,43 @@
+package kosukeroku.itrum_task.repository;
+
+import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
+import kosukeroku.itrum_task.model.WalletBalance;
+import kosukeroku.itrum_task.model.WalletBalanceId;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Lock;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Optional;
+import java.util.UUID;
+
+public interface WalletBalanceRepository extends JpaRepository<WalletBalance, WalletBalanceId> {
+    // locks only the (wallet, currency) row, the wallet row and other currencies stay free
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT b FROM WalletBalance b WHERE b.walletId = :walletId AND b.currency = :currency")
+    Optional<WalletBalance> findByIdWithLock(@Param("walletId") UUID walletId, @Param("currency") String currency);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "0"))
+    @Query("SELECT b FROM WalletBalance b WHERE b.walletId = :walletId AND b.currency = :currency")
+    Optional<WalletBalance> findByIdWithLockNoWait(@Param("walletId") UUID walletId, @Param("currency") String currency);
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "-2"))
+    @Query("SELECT b FROM WalletBalance b WHERE b.walletId = :walletId AND b.currency = :currency")
+    Optional<WalletBalance> findByIdWithLockSkipLocked(@Param("walletId") UUID walletId, @Param("currency") String currency);
+
+    // concurrent first deposits in the same currency race here, the loser just reuses the winner's row
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "wallet_balances"))
+    @Query(value = """
+            INSERT INTO wallet_balances (wallet_id, currency, balance, created_at, updated_at)
+            VALUES (:walletId, :currency, 0, now(), now())
+            ON CONFLICT DO NOTHING
+            """, nativeQuery = true)
+    int createIfAbsent(@Param("walletId") UUID walletId, @Param("currency") String currency);
+
+}
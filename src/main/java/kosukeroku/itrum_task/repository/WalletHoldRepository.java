@@ -0,0 +1,47 @@
+package kosukeroku.itrum_task.repository;
+
+import jakarta.persistence.QueryHint;
+import kosukeroku.itrum_task.model.WalletHold;
+import kosukeroku.itrum_task.repository.projection.ExpiredHoldView;
+import kosukeroku.itrum_task.repository.projection.HeldAmountView;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+
+public interface WalletHoldRepository extends JpaRepository<WalletHold, UUID> {
+    Optional<WalletHold> findByIdAndWalletId(UUID id, UUID walletId); // the caller holds the wallet lock
+
+    // oldest first from the partial index, no locks taken: the sweeper locks the wallets before touching these
+    @Query(value = """
+            SELECT id AS "id", wallet_id AS "walletId" FROM wallet_holds
+            WHERE status = 'ACTIVE' AND expires_at < now()
+            ORDER BY expires_at
+            LIMIT :limit OFFSET :offset
+            """, nativeQuery = true)
+    List<ExpiredHoldView> findExpired(@Param("limit") int limit, @Param("offset") int offset);
+
+    // run under the wallet locks like expire below, so no hold of these wallets can change in between
+    @Query(value = """
+            SELECT wallet_id AS "walletId", SUM(amount) AS "amount" FROM wallet_holds
+            WHERE id IN (:ids) AND status = 'ACTIVE'
+            GROUP BY wallet_id
+            """, nativeQuery = true)
+    List<HeldAmountView> sumActive(@Param("ids") Collection<UUID> ids);
+
+    // one statement for the whole batch; the query space keeps Hibernate from evicting every cache region on it
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "wallet_holds"))
+    @Query(value = """
+            UPDATE wallet_holds SET status = 'EXPIRED', updated_at = now()
+            WHERE id IN (:ids) AND status = 'ACTIVE'
+            """, nativeQuery = true)
+    int expire(@Param("ids") Collection<UUID> ids);
+
+}
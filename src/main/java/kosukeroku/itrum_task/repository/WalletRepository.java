@@ -1,11 +1,19 @@
 package kosukeroku.itrum_task.repository;
 
 import jakarta.persistence.LockModeType;
+import jakarta.persistence.QueryHint;
 import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.repository.projection.CurrencyBalanceView;
+import kosukeroku.itrum_task.repository.projection.WalletTierView;
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
 import java.util.UUID;
 import org.springframework.data.jpa.repository.JpaRepository;
 import org.springframework.data.jpa.repository.Lock;
 import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
 import org.springframework.data.repository.query.Param;
 
 import java.util.Optional;
@@ -13,6 +21,67 @@ import java.util.Optional;
 public interface WalletRepository extends JpaRepository<Wallet, UUID> {
     @Lock(LockModeType.PESSIMISTIC_WRITE)
     @Query("SELECT w FROM Wallet w WHERE w.id = :id")
-    Optional<Wallet> findByIdWithLock(@Param("id") UUID id); // for operations with balance
+    Optional<Wallet> findByIdWithLock(@Param("id") UUID id); // for operations with balance, bounded by lock_timeout
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "0"))
+    @Query("SELECT w FROM Wallet w WHERE w.id = :id")
+    Optional<Wallet> findByIdWithLockNoWait(@Param("id") UUID id); // FOR UPDATE NOWAIT
+
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @QueryHints(@QueryHint(name = "jakarta.persistence.lock.timeout", value = "-2"))
+    @Query("SELECT w FROM Wallet w WHERE w.id = :id")
+    Optional<Wallet> findByIdWithLockSkipLocked(@Param("id") UUID id); // FOR UPDATE SKIP LOCKED, empty if the row is locked
+
+    // write-behind flush: the whole batch in one round trip, in id order so two batches never wait on each other
+    @Lock(LockModeType.PESSIMISTIC_WRITE)
+    @Query("SELECT w FROM Wallet w WHERE w.id IN :ids ORDER BY w.id")
+    List<Wallet> findAllByIdWithLock(@Param("ids") Collection<UUID> ids);
+
+    // same row as findById, but a query never reads the second-level cache, for callers that must see the database
+    @Query("SELECT w FROM Wallet w WHERE w.id = :id")
+    Optional<Wallet> findByIdUncached(@Param("id") UUID id);
+
+    // projection on purpose: loading the entity here would put a stale copy into the persistence context before locking
+    @Query("SELECT w.currency FROM Wallet w WHERE w.id = :id")
+    Optional<String> findCurrencyById(@Param("id") UUID id);
+
+    @Query("SELECT w.heldAmount FROM Wallet w WHERE w.id = :id")
+    Optional<BigDecimal> findHeldAmountById(@Param("id") UUID id);
+
+    // wallets busy with an operation are skipped, the hold sweeper gets them on its next run
+    @Query(value = "SELECT id FROM wallets WHERE id IN (:ids) ORDER BY id FOR UPDATE SKIP LOCKED", nativeQuery = true)
+    List<UUID> lockAllSkipLocked(@Param("ids") Collection<UUID> ids);
+
+    // candidates for the archiver, busy wallets are skipped; there is no index on updated_at on purpose, it would
+    // keep balance updates from being HOT updates, so this is a sequential scan that stops at the limit
+    @Query(value = """
+            SELECT w.id FROM wallets w
+            WHERE w.updated_at < :idleSince AND w.held_amount = 0
+              AND NOT EXISTS (SELECT 1 FROM wallet_balances b WHERE b.wallet_id = w.id)
+              AND NOT EXISTS (SELECT 1 FROM wallet_holds h WHERE h.wallet_id = w.id)
+            LIMIT :limit
+            FOR UPDATE OF w SKIP LOCKED
+            """, nativeQuery = true)
+    List<UUID> lockDormantSkipLocked(@Param("idleSince") LocalDateTime idleSince, @Param("limit") int limit);
+
+    @Query("SELECT w.tier AS tier, w.currency AS currency FROM Wallet w WHERE w.id = :id")
+    Optional<WalletTierView> findTierById(@Param("id") UUID id);
+
+    // base balance first, then all sub-ledgers, both branches are primary key lookups in a single round trip
+    @Query(value = """
+            SELECT w.currency AS currency, w.balance AS balance, 0 AS sort_order FROM wallets w WHERE w.id = :id
+            UNION ALL
+            SELECT b.currency, b.balance, 1 FROM wallet_balances b WHERE b.wallet_id = :id
+            ORDER BY sort_order, currency
+            """, nativeQuery = true)
+    List<CurrencyBalanceView> findAllBalancesById(@Param("id") UUID id);
+
+    // SET LOCAL equivalents, both settings are reset when the current transaction ends
+    @Query(value = "SELECT set_config('lock_timeout', :timeout, true)", nativeQuery = true)
+    String setLocalLockTimeout(@Param("timeout") String timeout);
+
+    @Query(value = "SELECT set_config('statement_timeout', :timeout, true)", nativeQuery = true)
+    String setLocalStatementTimeout(@Param("timeout") String timeout);
 
 }
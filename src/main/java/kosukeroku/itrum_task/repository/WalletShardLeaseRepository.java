@@ -0,0 +1,48 @@
+package kosukeroku.itrum_task.repository;
+
+import jakarta.persistence.QueryHint;
+import kosukeroku.itrum_task.model.WalletShardLease;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import java.util.Collection;
+import java.util.List;
+
+public interface WalletShardLeaseRepository extends JpaRepository<WalletShardLease, Integer> {
+    // takes a free shard or an expired one its owner left drained, or renews one this node already holds; 1 if the
+    // node owns the shard afterwards. A write-behind node leases with drained = false, so when it crashes nobody
+    // serves its wallets from the database until it is back and has replayed its log
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "wallet_shard_leases"))
+    @Query(value = """
+            INSERT INTO wallet_shard_leases (shard, node_id, url, expires_at, drained)
+            VALUES (:shard, :nodeId, :url, now() + :leaseMillis * interval '1 millisecond', :drained)
+            ON CONFLICT (shard) DO UPDATE SET node_id = EXCLUDED.node_id, url = EXCLUDED.url,
+                expires_at = EXCLUDED.expires_at, drained = EXCLUDED.drained
+            WHERE wallet_shard_leases.node_id = EXCLUDED.node_id
+               OR wallet_shard_leases.expires_at < now() AND wallet_shard_leases.drained
+            """, nativeQuery = true)
+    int tryAcquire(@Param("shard") int shard, @Param("nodeId") String nodeId, @Param("url") String url,
+                   @Param("leaseMillis") long leaseMillis, @Param("drained") boolean drained);
+
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "wallet_shard_leases"))
+    @Query(value = """
+            UPDATE wallet_shard_leases SET expires_at = now() - interval '1 millisecond', drained = true
+            WHERE shard IN (:shards) AND node_id = :nodeId
+            """, nativeQuery = true)
+    int release(@Param("shards") Collection<Integer> shards, @Param("nodeId") String nodeId); // after draining the log
+
+    // on start, once the log was replayed: none of the shards this node leased before has unflushed entries left
+    @Modifying
+    @QueryHints(@QueryHint(name = "org.hibernate.query.native.spaces", value = "wallet_shard_leases"))
+    @Query(value = "UPDATE wallet_shard_leases SET drained = true WHERE node_id = :nodeId", nativeQuery = true)
+    int markDrained(@Param("nodeId") String nodeId);
+
+    @Query(value = "SELECT * FROM wallet_shard_leases WHERE expires_at > now()", nativeQuery = true)
+    List<WalletShardLease> findActive();
+
+}
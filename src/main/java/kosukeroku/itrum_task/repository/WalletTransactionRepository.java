@@ -0,0 +1,31 @@
+package kosukeroku.itrum_task.repository;
+
+import kosukeroku.itrum_task.model.WalletTransaction;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+public interface WalletTransactionRepository extends JpaRepository<WalletTransaction, UUID> {
+    // both pages are a backward range scan of idx_wallet_transactions_wallet_created_id, cost depends on limit only
+    @Query(value = """
+            SELECT * FROM wallet_transactions
+            WHERE wallet_id = :walletId
+            ORDER BY created_at DESC, id DESC
+            LIMIT :limit
+            """, nativeQuery = true)
+    List<WalletTransaction> findFirstPage(@Param("walletId") UUID walletId, @Param("limit") int limit);
+
+    @Query(value = """
+            SELECT * FROM wallet_transactions
+            WHERE wallet_id = :walletId AND (created_at, id) < (:createdAt, :id)
+            ORDER BY created_at DESC, id DESC
+            LIMIT :limit
+            """, nativeQuery = true)
+    List<WalletTransaction> findPageBefore(@Param("walletId") UUID walletId, @Param("createdAt") LocalDateTime createdAt,
+                                           @Param("id") UUID id, @Param("limit") int limit);
+
+}
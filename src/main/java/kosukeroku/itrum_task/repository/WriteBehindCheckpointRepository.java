@@ -0,0 +1,7 @@
+package kosukeroku.itrum_task.repository;
+
+import kosukeroku.itrum_task.model.WriteBehindCheckpoint;
+import org.springframework.data.jpa.repository.JpaRepository;
+
+public interface WriteBehindCheckpointRepository extends JpaRepository<WriteBehindCheckpoint, String> {
+}
@@ -0,0 +1,18 @@
+package kosukeroku.itrum_task.repository.projection;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+
+public interface ActivityBucketView {
+    LocalDateTime getBucketStart();
+
+    String getCurrency();
+
+    Long getDepositCount();
+
+    BigDecimal getDepositAmount();
+
+    Long getWithdrawalCount();
+
+    BigDecimal getWithdrawalAmount();
+}
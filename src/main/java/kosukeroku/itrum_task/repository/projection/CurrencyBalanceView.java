@@ -0,0 +1,9 @@
+package kosukeroku.itrum_task.repository.projection;
+
+import java.math.BigDecimal;
+
+public interface CurrencyBalanceView {
+    String getCurrency();
+
+    BigDecimal getBalance();
+}
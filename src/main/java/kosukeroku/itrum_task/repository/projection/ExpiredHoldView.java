@@ -0,0 +1,9 @@
+package kosukeroku.itrum_task.repository.projection;
+
+import java.util.UUID;
+
+public interface ExpiredHoldView {
+    UUID getId();
+
+    UUID getWalletId();
+}
@@ -0,0 +1,10 @@
+package kosukeroku.itrum_task.repository.projection;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+public interface HeldAmountView {
+    UUID getWalletId();
+
+    BigDecimal getAmount();
+}
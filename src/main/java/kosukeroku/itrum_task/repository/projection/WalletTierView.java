@@ -0,0 +1,7 @@
+package kosukeroku.itrum_task.repository.projection;
+
+public interface WalletTierView {
+    String getTier();
+
+    String getCurrency(); // base currency, the withdrawal amount limit is in it
+}
@@ -0,0 +1,46 @@
+package kosukeroku.itrum_task.service;
+
+import java.time.Duration;
+
+public final class RequestDeadline {
+
+    private static final RequestDeadline NONE = new RequestDeadline(Long.MAX_VALUE);
+
+    private final long deadlineNanos;
+
+    private RequestDeadline(long deadlineNanos) {
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    public static RequestDeadline none() {
+        return NONE;
+    }
+
+    // timeout is relative to the moment the request was received, so client and server clocks don't have to agree
+    public static RequestDeadline ofTimeoutMillis(Long timeoutMillis) {
+        if (timeoutMillis == null) {
+            return NONE;
+        }
+        return new RequestDeadline(System.nanoTime() + Duration.ofMillis(Math.max(0, timeoutMillis)).toNanos());
+    }
+
+    public boolean isBounded() {
+        return this != NONE;
+    }
+
+    public boolean isExpired() {
+        return isBounded() && remainingMillis() <= 0;
+    }
+
+    public long remainingMillis() {
+        if (!isBounded()) {
+            return Long.MAX_VALUE;
+        }
+        return Duration.ofNanos(deadlineNanos - System.nanoTime()).toMillis();
+    }
+
+    @Override
+    public String toString() {
+        return isBounded() ? "RequestDeadline[remaining=" + remainingMillis() + "ms]" : "RequestDeadline[none]";
+    }
+}
@@ -0,0 +1,62 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.RollupGranularity;
+import kosukeroku.itrum_task.dto.WalletActivityResponseDTO;
+import kosukeroku.itrum_task.exception.InvalidTimeRangeException;
+import kosukeroku.itrum_task.mapper.WalletMapper;
+import kosukeroku.itrum_task.repository.WalletActivityRollupRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.time.temporal.ChronoUnit;
+import java.util.UUID;
+
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class WalletActivityService {
+
+    private final WalletActivityRollupRepository walletActivityRollupRepository;
+    private final WalletMapper walletMapper;
+
+    // joins the operation's transaction, one upsert into the current hourly bucket
+    @Transactional
+    public void accumulate(UUID walletId, OperationType operationType, BigDecimal amount, String currency) {
+        if (operationType == OperationType.HOLD || operationType == OperationType.RELEASE) {
+            return; // reservations move no money, a CAPTURE counts as the withdrawal
+        }
+        LocalDateTime bucketStart = LocalDateTime.now().truncatedTo(ChronoUnit.HOURS);
+        boolean deposit = operationType == OperationType.DEPOSIT;
+
+        walletActivityRollupRepository.accumulate(walletId, bucketStart, currency,
+                deposit ? 1 : 0, deposit ? amount : BigDecimal.ZERO,
+                deposit ? 0 : 1, deposit ? BigDecimal.ZERO : amount);
+        log.debug("Accumulated {} of {} {} for wallet {} into bucket {}", operationType, amount, currency, walletId, bucketStart);
+    }
+
+    // reads rollups only, an unknown wallet simply has no buckets and the wallets table is never touched
+    @Transactional(readOnly = true)
+    public WalletActivityResponseDTO getActivity(UUID walletId, RollupGranularity granularity,
+                                                 LocalDateTime from, LocalDateTime to) {
+        LocalDateTime rangeTo = to != null ? to : LocalDateTime.now();
+        LocalDateTime rangeFrom = from != null ? from : rangeTo.minusDays(1);
+        if (!rangeFrom.isBefore(rangeTo)) {
+            throw new InvalidTimeRangeException(rangeFrom, rangeTo);
+        }
+        log.debug("Getting {} activity for wallet {} in [{}, {})", granularity, walletId, rangeFrom, rangeTo);
+
+        return WalletActivityResponseDTO.builder()
+                .id(walletId)
+                .granularity(granularity)
+                .from(rangeFrom)
+                .to(rangeTo)
+                .buckets(walletMapper.toActivityBucketDtos(
+                        walletActivityRollupRepository.findBuckets(walletId, granularity.getUnit(), rangeFrom, rangeTo)))
+                .build();
+    }
+}
@@ -0,0 +1,64 @@
+package kosukeroku.itrum_task.service;
+
+import jakarta.persistence.Cache;
+import jakarta.persistence.EntityManagerFactory;
+import kosukeroku.itrum_task.config.WalletArchiveProperties;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+
+// moves wallets idle past the threshold into wallets_archive in batches, so the wallets table and its primary key
+// index only hold the working set; WalletService moves a wallet back on its next operation
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "wallet.archive", name = "enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class WalletArchiver {
+
+    private static final int MAX_BATCHES_PER_RUN = 20; // leaves the scheduler thread to the other jobs in between
+
+    private final WalletRepository walletRepository;
+    private final ArchivedWalletRepository archivedWalletRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final WalletArchiveProperties properties;
+    private final EntityManagerFactory entityManagerFactory;
+
+    @Scheduled(fixedDelayString = "${wallet.archive.interval-ms:3600000}")
+    public void archive() {
+        try {
+            for (int batch = 0; batch < MAX_BATCHES_PER_RUN; batch++) {
+                if (archiveBatch() < properties.getBatchSize()) {
+                    return;
+                }
+            }
+        } catch (RuntimeException ex) { // nothing was moved, the wallets are picked up on the next run
+            log.error("Wallet archiving failed: {}", ex.getMessage(), ex);
+        }
+    }
+
+    // number of wallets archived, a batch cut short by wallets that became busy ends the run
+    private int archiveBatch() {
+        LocalDateTime idleSince = LocalDateTime.now().minus(properties.getIdleThreshold());
+        List<UUID> archived = transactionTemplate.execute(status -> {
+            List<UUID> locked = walletRepository.lockDormantSkipLocked(idleSince, properties.getBatchSize());
+            return locked.isEmpty() ? List.<UUID>of() : archivedWalletRepository.archive(locked, idleSince);
+        });
+
+        if (!archived.isEmpty()) { // native statements bypass the second-level cache
+            Cache cache = entityManagerFactory.getCache();
+            archived.forEach(walletId -> cache.evict(Wallet.class, walletId));
+            log.debug("Archived {} wallets idle since {}", archived.size(), idleSince);
+        }
+        return archived.size();
+    }
+}
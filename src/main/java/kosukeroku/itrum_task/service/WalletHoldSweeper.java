@@ -0,0 +1,101 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.config.WalletHoldProperties;
+import kosukeroku.itrum_task.repository.WalletHoldRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.projection.ExpiredHoldView;
+import kosukeroku.itrum_task.repository.projection.HeldAmountView;
+import kosukeroku.itrum_task.service.cluster.ClusterMembership;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindLedger;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.stream.Collectors;
+
+// releases expired holds in batches: one statement expires the whole batch and each wallet is updated once
+// with the sum of its expired holds, instead of a transaction per hold; in a cluster each node sweeps only the
+// wallets it owns, so the owner's write-behind ledger is the one that learns about the released amounts
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class WalletHoldSweeper {
+
+    private static final int MAX_BATCHES_PER_RUN = 20; // leaves the scheduler thread to the other jobs in between
+
+    private final WalletHoldRepository walletHoldRepository;
+    private final WalletRepository walletRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final WalletHoldProperties properties;
+    private final ObjectProvider<WriteBehindLedger> writeBehindLedger;
+    private final ObjectProvider<ClusterMembership> clusterMembership;
+
+    @Scheduled(fixedDelayString = "${wallet.holds.sweep-interval-ms:1000}")
+    public void sweep() {
+        ClusterMembership membership = clusterMembership.getIfAvailable();
+        try {
+            int foreign = 0; // holds of wallets other nodes own stay expired at the head, later batches skip them
+            for (int batch = 0; batch < MAX_BATCHES_PER_RUN; batch++) {
+                List<ExpiredHoldView> found = walletHoldRepository.findExpired(properties.getSweepBatchSize(), foreign);
+                List<ExpiredHoldView> owned = membership == null ? found : found.stream()
+                        .filter(hold -> membership.ownsLocally(membership.shardOf(hold.getWalletId())))
+                        .toList();
+                foreign += found.size() - owned.size();
+                if (sweepBatch(owned) < owned.size() || found.size() < properties.getSweepBatchSize()) {
+                    return;
+                }
+            }
+        } catch (RuntimeException ex) { // the holds stay active and are picked up on the next run
+            log.error("Hold sweep failed: {}", ex.getMessage(), ex);
+        }
+    }
+
+    private record Swept(int holds, List<HeldAmountView> wallets) {
+    }
+
+    // number of holds expired, holds of busy wallets don't count so a batch with any of those ends the run
+    private int sweepBatch(List<ExpiredHoldView> found) {
+        if (found.isEmpty()) {
+            return 0;
+        }
+
+        Swept swept = transactionTemplate.execute(status -> {
+            // same lock order as the operations, wallet before hold; busy wallets are left for the next run
+            Set<UUID> locked = new HashSet<>(walletRepository.lockAllSkipLocked(
+                    found.stream().map(ExpiredHoldView::getWalletId).distinct().toList()));
+            List<UUID> holdIds = found.stream()
+                    .filter(hold -> locked.contains(hold.getWalletId()))
+                    .map(ExpiredHoldView::getId)
+                    .toList();
+            if (holdIds.isEmpty()) {
+                return new Swept(0, List.of());
+            }
+
+            List<HeldAmountView> expired = walletHoldRepository.sumActive(holdIds);
+            int count = walletHoldRepository.expire(holdIds);
+            // entity updates rather than a bulk UPDATE, which would evict the whole wallets cache region on every
+            // sweep; the rows are locked, so the query below reads the current values and skips the cache
+            Map<UUID, BigDecimal> released = expired.stream()
+                    .collect(Collectors.toMap(HeldAmountView::getWalletId, HeldAmountView::getAmount));
+            walletRepository.findAllById(released.keySet()).forEach(wallet ->
+                    wallet.setHeldAmount(wallet.getHeldAmount().subtract(released.get(wallet.getId()))));
+            return new Swept(count, expired);
+        });
+
+        if (!swept.wallets().isEmpty()) {
+            List<UUID> walletIds = swept.wallets().stream().map(HeldAmountView::getWalletId).toList();
+            writeBehindLedger.ifAvailable(ledger -> ledger.refreshHeld(walletIds));
+            log.debug("Released {} expired holds on {} wallets", swept.holds(), swept.wallets().size());
+        }
+        return swept.holds();
+    }
+}
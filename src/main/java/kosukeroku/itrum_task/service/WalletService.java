@@ -1,20 +1,45 @@
 package kosukeroku.itrum_task.service;
 
+import kosukeroku.itrum_task.config.LockWaitPolicy;
+import kosukeroku.itrum_task.config.WalletHoldProperties;
+import kosukeroku.itrum_task.config.WalletLockProperties;
+import kosukeroku.itrum_task.dto.CurrencyBalanceDTO;
 import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletBalancesResponseDTO;
 import kosukeroku.itrum_task.dto.WalletRequestDTO;
 import kosukeroku.itrum_task.dto.WalletResponseDTO;
+import kosukeroku.itrum_task.exception.DeadlineExceededException;
+import kosukeroku.itrum_task.exception.HoldNotFoundException;
 import kosukeroku.itrum_task.exception.InsufficientFundsException;
+import kosukeroku.itrum_task.exception.InvalidHoldOperationException;
+import kosukeroku.itrum_task.exception.WalletLockTimeoutException;
 import kosukeroku.itrum_task.exception.WalletNotFoundException;
 import kosukeroku.itrum_task.mapper.WalletMapper;
+import kosukeroku.itrum_task.model.ArchivedWallet;
+import kosukeroku.itrum_task.model.HoldStatus;
+import kosukeroku.itrum_task.model.TransactionStatus;
 import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WalletBalance;
+import kosukeroku.itrum_task.model.WalletBalanceId;
+import kosukeroku.itrum_task.model.WalletHold;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletBalanceRepository;
+import kosukeroku.itrum_task.repository.WalletHoldRepository;
 import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.projection.CurrencyBalanceView;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.dao.PessimisticLockingFailureException;
+import org.springframework.dao.QueryTimeoutException;
 import org.springframework.stereotype.Service;
 import org.springframework.transaction.annotation.Transactional;
 
 import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
 import java.util.UUID;
+import java.util.function.Supplier;
 
 @Service
 @Slf4j
@@ -22,57 +47,356 @@ import java.util.UUID;
 public class WalletService {
 
     private final WalletRepository walletRepository;
+    private final WalletBalanceRepository walletBalanceRepository;
     private final WalletMapper walletMapper;
+    private final WalletLockProperties lockProperties;
+    private final WalletTransactionService walletTransactionService;
+    private final WalletHoldRepository walletHoldRepository;
+    private final WalletHoldProperties holdProperties;
+    private final ArchivedWalletRepository archivedWalletRepository;
 
-    @Transactional
+    // rejected withdrawals don't touch the balance, committing lets their history record survive
+    @Transactional(noRollbackFor = InsufficientFundsException.class)
     public WalletResponseDTO processOperation(WalletRequestDTO request) {
-        log.debug("Processing operation: walletId = {}, type = {}, amount = {}",
-                request.getWalletId(), request.getOperationType(), request.getAmount());
+        return processOperation(request, RequestDeadline.none());
+    }
+
+    @Transactional(noRollbackFor = InsufficientFundsException.class)
+    public WalletResponseDTO processOperation(WalletRequestDTO request, RequestDeadline deadline) {
+        log.debug("Processing operation: walletId = {}, type = {}, amount = {}, currency = {}, deadline = {}",
+                request.getWalletId(), request.getOperationType(), request.getAmount(), request.getCurrency(), deadline);
+
+        if (isHoldOperation(request.getOperationType())) {
+            return processHoldOperation(request, deadline);
+        }
+
+        if (request.getCurrency() != null) {
+            Optional<WalletResponseDTO> response = processSubLedgerOperation(request, deadline);
+            if (response.isPresent()) {
+                return response.get();
+            }
+        }
+
+        Wallet wallet = lockWallet(request.getWalletId(), deadline); // getting a wallet with pessimistic lock
+
+        log.debug("Current balance: {}", wallet.getBalance());
+
+        wallet.setBalance(apply(wallet.getId(), wallet.getBalance(), wallet.getHeldAmount(), wallet.getCurrency(), request));
+
+        return walletMapper.toResponseDto(wallet);
+    }
+
+    public static boolean isHoldOperation(OperationType operationType) {
+        return operationType == OperationType.HOLD || operationType == OperationType.CAPTURE
+                || operationType == OperationType.RELEASE;
+    }
+
+    // holds reserve funds on the wallets row itself: one update per operation, the same as a withdrawal
+    private WalletResponseDTO processHoldOperation(WalletRequestDTO request, RequestDeadline deadline) {
+        Wallet wallet = lockWallet(request.getWalletId(), deadline);
+
+        if (request.getCurrency() != null && !request.getCurrency().equals(wallet.getCurrency())) {
+            throw new InvalidHoldOperationException("Holds are only supported in the wallet's base currency "
+                    + wallet.getCurrency());
+        }
+
+        log.debug("Current balance: {}, held: {}", wallet.getBalance(), wallet.getHeldAmount());
+
+        WalletHold hold = switch (request.getOperationType()) {
+            case HOLD -> hold(wallet, request.getAmount());
+            case CAPTURE -> capture(wallet, activeHold(wallet, request), request.getAmount());
+            case RELEASE -> release(wallet, activeHold(wallet, request), request.getAmount());
+            default -> throw new IllegalArgumentException("Not a hold operation: " + request.getOperationType());
+        };
+
+        walletTransactionService.record(wallet.getId(), request.getOperationType(), request.getAmount(),
+                wallet.getCurrency(), wallet.getBalance(), TransactionStatus.COMPLETED);
+
+        WalletResponseDTO response = walletMapper.toResponseDto(wallet);
+        response.setHoldId(hold.getId());
+        return response;
+    }
 
-        Wallet wallet = walletRepository.findByIdWithLock(request.getWalletId()) // getting a wallet with pessimistic lock
+    private WalletHold hold(Wallet wallet, BigDecimal amount) {
+        BigDecimal available = wallet.getBalance().subtract(wallet.getHeldAmount());
+        if (available.compareTo(amount) < 0) {
+            walletTransactionService.record(wallet.getId(), OperationType.HOLD, amount, wallet.getCurrency(),
+                    wallet.getBalance(), TransactionStatus.REJECTED);
+            throw new InsufficientFundsException(wallet.getId(), available, amount);
+        }
+
+        WalletHold hold = new WalletHold();
+        hold.setWalletId(wallet.getId());
+        hold.setAmount(amount);
+        hold.setCurrency(wallet.getCurrency());
+        hold.setExpiresAt(LocalDateTime.now().plus(holdProperties.getTtl()));
+        walletHoldRepository.save(hold);
+
+        wallet.setHeldAmount(wallet.getHeldAmount().add(amount));
+        log.debug("Held {} on wallet {} until {}", amount, wallet.getId(), hold.getExpiresAt());
+        return hold;
+    }
+
+    private WalletHold capture(Wallet wallet, WalletHold hold, BigDecimal amount) {
+        if (amount.compareTo(hold.getAmount()) > 0) {
+            throw new InvalidHoldOperationException(String.format("Capture of %s exceeds the %s held by hold %s",
+                    amount, hold.getAmount(), hold.getId()));
+        }
+
+        wallet.setBalance(wallet.getBalance().subtract(amount));
+        wallet.setHeldAmount(wallet.getHeldAmount().subtract(hold.getAmount())); // the uncaptured rest is released
+        hold.setStatus(HoldStatus.CAPTURED);
+        log.debug("Captured {} of hold {} on wallet {}", amount, hold.getId(), wallet.getId());
+        return hold;
+    }
+
+    private WalletHold release(Wallet wallet, WalletHold hold, BigDecimal amount) {
+        if (amount.compareTo(hold.getAmount()) > 0) {
+            throw new InvalidHoldOperationException(String.format("Release of %s exceeds the %s held by hold %s",
+                    amount, hold.getAmount(), hold.getId()));
+        }
+
+        wallet.setHeldAmount(wallet.getHeldAmount().subtract(amount));
+        hold.setAmount(hold.getAmount().subtract(amount));
+        if (hold.getAmount().signum() == 0) {
+            hold.setStatus(HoldStatus.RELEASED);
+        }
+        log.debug("Released {} of hold {} on wallet {}", amount, hold.getId(), wallet.getId());
+        return hold;
+    }
+
+    // the wallet lock is held, so neither another operation nor the sweeper can change the hold meanwhile
+    private WalletHold activeHold(Wallet wallet, WalletRequestDTO request) {
+        if (request.getHoldId() == null) {
+            throw new InvalidHoldOperationException("Hold ID is required for " + request.getOperationType());
+        }
+
+        WalletHold hold = walletHoldRepository.findByIdAndWalletId(request.getHoldId(), wallet.getId())
                 .orElseThrow(() -> {
-                    log.warn("Wallet not found: {}", request.getWalletId());
-                    return new WalletNotFoundException(request.getWalletId());
+                    log.warn("Hold {} not found on wallet {}", request.getHoldId(), wallet.getId());
+                    return new HoldNotFoundException(request.getHoldId(), wallet.getId());
                 });
 
-        log.debug("Current balance: {}", wallet.getBalance());
+        if (hold.getStatus() != HoldStatus.ACTIVE) {
+            throw new InvalidHoldOperationException("Hold " + hold.getId() + " is already " + hold.getStatus());
+        }
+        if (hold.getExpiresAt().isBefore(LocalDateTime.now())) { // not swept yet, but no longer usable
+            throw new InvalidHoldOperationException("Hold " + hold.getId() + " has expired");
+        }
+        return hold;
+    }
+
+    // empty when the requested currency is the wallet's base one, so the caller falls back to the wallets row
+    private Optional<WalletResponseDTO> processSubLedgerOperation(WalletRequestDTO request, RequestDeadline deadline) {
+        UUID walletId = request.getWalletId();
+        String currency = request.getCurrency();
+
+        Optional<WalletBalance> walletBalance = lockWalletBalance(walletId, currency, deadline);
+
+        if (walletBalance.isEmpty()) {
+            String baseCurrency = walletRepository.findCurrencyById(walletId)
+                    .or(() -> {
+                        rehydrate(walletId); // see lockWallet, a concurrent restore also makes the row visible
+                        return walletRepository.findCurrencyById(walletId);
+                    })
+                    .orElseThrow(() -> {
+                        log.warn("Wallet not found: {}", walletId);
+                        return new WalletNotFoundException(walletId);
+                    });
 
-        if (request.getOperationType() == OperationType.DEPOSIT) { // processing either deposit or withdrawal operation
-            deposit(wallet, request.getAmount());
-            log.debug("Deposit successful. New balance: {}", wallet.getBalance());
-        } else {
-            withdraw(wallet, request.getAmount());
-            log.debug("Withdrawal successful. New balance: {}", wallet.getBalance());
+            if (baseCurrency.equals(currency)) {
+                return Optional.empty();
+            }
+
+            if (request.getOperationType() != OperationType.DEPOSIT) { // nothing was ever deposited in this currency
+                walletTransactionService.record(walletId, request.getOperationType(), request.getAmount(), currency,
+                        BigDecimal.ZERO, TransactionStatus.REJECTED);
+                throw new InsufficientFundsException(walletId, BigDecimal.ZERO, request.getAmount());
+            }
+
+            log.debug("Opening {} sub-ledger for wallet {}", currency, walletId);
+            walletBalanceRepository.createIfAbsent(walletId, currency);
+            walletBalance = lockWalletBalance(walletId, currency, deadline);
         }
 
-        return walletMapper.toResponseDto(wallet);
+        WalletBalance balance = walletBalance.orElseThrow(() -> new WalletLockTimeoutException(walletId));
+
+        log.debug("Current {} balance: {}", currency, balance.getBalance());
+
+        balance.setBalance(apply(walletId, balance.getBalance(), BigDecimal.ZERO, currency, request));
+
+        return Optional.of(walletMapper.toBalanceResponseDto(balance));
     }
 
     @Transactional(readOnly = true)
     public WalletResponseDTO getBalance(UUID walletId) {
         log.debug("Getting balance for wallet: {}", walletId);
 
-        Wallet wallet = walletRepository.findById(walletId) // reading without lock
-                .orElseThrow(() -> {
-                    log.warn("Wallet not found: {}", walletId);
-                    return new WalletNotFoundException(walletId);
-                });
+        Optional<Wallet> wallet = walletRepository.findById(walletId); // reading without lock
+        if (wallet.isEmpty()) { // a read doesn't rehydrate, the wallet stays archived until it changes
+            Optional<ArchivedWallet> archived = archivedWalletRepository.findById(walletId);
+            if (archived.isPresent()) {
+                return walletMapper.toArchivedResponseDto(archived.get());
+            }
+            // missing from both: an operation may have restored it in between, each statement sees the latest commit
+            wallet = walletRepository.findByIdUncached(walletId);
+        }
+        Wallet found = wallet.orElseThrow(() -> notFound(walletId));
 
-        log.debug("Current balance for wallet {}: {}", walletId, wallet.getBalance());
+        log.debug("Current balance for wallet {}: {}", walletId, found.getBalance());
 
-        return walletMapper.toResponseDto(wallet);
+        return walletMapper.toResponseDto(found);
+    }
+
+    @Transactional(readOnly = true)
+    public WalletBalancesResponseDTO getAllBalances(UUID walletId) {
+        log.debug("Getting all balances for wallet: {}", walletId);
+
+        List<CurrencyBalanceView> balances = walletRepository.findAllBalancesById(walletId); // one round trip for all currencies
+        if (balances.isEmpty()) { // the base balance row is always present for an existing wallet
+            Optional<ArchivedWallet> archived = archivedWalletRepository.findById(walletId); // sub-ledgers are never archived
+            if (archived.isPresent()) {
+                return WalletBalancesResponseDTO.builder()
+                        .id(walletId)
+                        .balances(List.of(new CurrencyBalanceDTO(archived.get().getCurrency(), archived.get().getBalance())))
+                        .build();
+            }
+            balances = walletRepository.findAllBalancesById(walletId); // restored in between, see getBalance
+            if (balances.isEmpty()) {
+                throw notFound(walletId);
+            }
+        }
+
+        return WalletBalancesResponseDTO.builder()
+                .id(walletId)
+                .balances(walletMapper.toCurrencyBalanceDtos(balances))
+                .build();
+    }
+
+    // moves an archived wallet back into wallets, joins the caller's transaction; false if it isn't archived
+    @Transactional
+    public boolean rehydrate(UUID walletId) {
+        Optional<UUID> restored = archivedWalletRepository.restore(walletId);
+        restored.ifPresent(id -> log.info("Rehydrated archived wallet {}", id));
+        return restored.isPresent();
     }
 
-    private void deposit(Wallet wallet, BigDecimal amount) {
-        log.debug("Depositing {} to wallet {}", amount, wallet.getId());
-        wallet.setBalance(wallet.getBalance().add(amount));
+    private static WalletNotFoundException notFound(UUID walletId) {
+        log.warn("Wallet not found: {}", walletId);
+        return new WalletNotFoundException(walletId);
     }
 
-    private void withdraw(Wallet wallet, BigDecimal amount) {
-        log.debug("Withdrawing {} from wallet {}", amount, wallet.getId());
-        if (wallet.getBalance().compareTo(amount) < 0) {
-            throw new InsufficientFundsException(wallet.getId(), wallet.getBalance(), amount);
+    private Wallet lockWallet(UUID walletId, RequestDeadline deadline) {
+        Optional<Wallet> wallet = lockWalletRow(walletId, deadline);
+        if (wallet.isEmpty()) {
+            // read again either way: false from rehydrate can mean a concurrent operation restored the wallet first,
+            // restore waits for that transaction, so its row is committed by now
+            rehydrate(walletId);
+            wallet = lockWalletRow(walletId, deadline);
         }
-        wallet.setBalance(wallet.getBalance().subtract(amount));
+
+        return wallet.orElseThrow(() -> {
+            if (lockProperties.getWaitPolicy() == LockWaitPolicy.SKIP_LOCKED && walletRepository.existsById(walletId)) {
+                log.warn("Wallet {} is locked by another transaction", walletId); // skipped row, not a missing one
+                return new WalletLockTimeoutException(walletId);
+            }
+            log.warn("Wallet not found: {}", walletId);
+            return new WalletNotFoundException(walletId);
+        });
+    }
+
+    private Optional<Wallet> lockWalletRow(UUID walletId, RequestDeadline deadline) {
+        return lockRow(walletId, deadline,
+                () -> walletRepository.findByIdWithLock(walletId),
+                () -> walletRepository.findByIdWithLockNoWait(walletId),
+                () -> walletRepository.findByIdWithLockSkipLocked(walletId));
+    }
+
+    private Optional<WalletBalance> lockWalletBalance(UUID walletId, String currency, RequestDeadline deadline) {
+        Optional<WalletBalance> walletBalance = lockRow(walletId, deadline,
+                () -> walletBalanceRepository.findByIdWithLock(walletId, currency),
+                () -> walletBalanceRepository.findByIdWithLockNoWait(walletId, currency),
+                () -> walletBalanceRepository.findByIdWithLockSkipLocked(walletId, currency));
+
+        if (walletBalance.isEmpty() && lockProperties.getWaitPolicy() == LockWaitPolicy.SKIP_LOCKED
+                && walletBalanceRepository.existsById(new WalletBalanceId(walletId, currency))) {
+            log.warn("Wallet {} {} balance is locked by another transaction", walletId, currency);
+            throw new WalletLockTimeoutException(walletId);
+        }
+        return walletBalance;
+    }
+
+    private <T> Optional<T> lockRow(UUID walletId, RequestDeadline deadline, Supplier<Optional<T>> withTimeout,
+                                    Supplier<Optional<T>> noWait, Supplier<Optional<T>> skipLocked) {
+        if (deadline.isExpired()) {
+            log.warn("Deadline expired before locking wallet {}", walletId);
+            throw new DeadlineExceededException(walletId);
+        }
+
+        applyTimeouts(deadline);
+
+        try {
+            return switch (lockProperties.getWaitPolicy()) {
+                case NOWAIT -> noWait.get();
+                case SKIP_LOCKED -> skipLocked.get();
+                case TIMEOUT -> withTimeout.get();
+            };
+        } catch (PessimisticLockingFailureException | QueryTimeoutException ex) { // lock_not_available or statement_timeout
+            log.warn("Lock on wallet {} was not acquired in time: {}", walletId, ex.getMessage());
+            throw new WalletLockTimeoutException(walletId, ex);
+        }
+    }
+
+    // lock_timeout bounds the wait for the row lock, statement_timeout bounds everything else until commit
+    private void applyTimeouts(RequestDeadline deadline) {
+        long lockTimeoutMillis = lockProperties.getTimeout() != null && lockProperties.getTimeout().toMillis() > 0
+                ? lockProperties.getTimeout().toMillis()
+                : Long.MAX_VALUE;
+
+        if (lockProperties.getWaitPolicy() == LockWaitPolicy.TIMEOUT) {
+            lockTimeoutMillis = Math.min(lockTimeoutMillis, deadline.remainingMillis());
+            if (lockTimeoutMillis != Long.MAX_VALUE) {
+                walletRepository.setLocalLockTimeout(Math.max(1, lockTimeoutMillis) + "ms"); // 0 would disable the timeout
+            }
+        }
+
+        if (deadline.isBounded()) {
+            walletRepository.setLocalStatementTimeout(Math.max(1, deadline.remainingMillis()) + "ms");
+        }
+    }
+
+    private BigDecimal apply(UUID walletId, BigDecimal balance, BigDecimal held, String currency, WalletRequestDTO request) {
+        BigDecimal newBalance;
+        try {
+            if (request.getOperationType() == OperationType.DEPOSIT) { // processing either deposit or withdrawal operation
+                newBalance = deposit(walletId, balance, request.getAmount());
+                log.debug("Deposit successful. New balance: {}", newBalance);
+            } else {
+                newBalance = withdraw(walletId, balance, held, request.getAmount());
+                log.debug("Withdrawal successful. New balance: {}", newBalance);
+            }
+        } catch (InsufficientFundsException ex) {
+            walletTransactionService.record(walletId, request.getOperationType(), request.getAmount(), currency,
+                    balance, TransactionStatus.REJECTED);
+            throw ex;
+        }
+
+        walletTransactionService.record(walletId, request.getOperationType(), request.getAmount(), currency,
+                newBalance, TransactionStatus.COMPLETED);
+        return newBalance;
+    }
+
+    private BigDecimal deposit(UUID walletId, BigDecimal balance, BigDecimal amount) {
+        log.debug("Depositing {} to wallet {}", amount, walletId);
+        return balance.add(amount);
+    }
+
+    private BigDecimal withdraw(UUID walletId, BigDecimal balance, BigDecimal held, BigDecimal amount) {
+        log.debug("Withdrawing {} from wallet {}", amount, walletId);
+        BigDecimal available = balance.subtract(held); // held funds stay on the balance but can't be withdrawn
+        if (available.compareTo(amount) < 0) {
+            throw new InsufficientFundsException(walletId, available, amount);
+        }
+        return balance.subtract(amount);
     }
 }
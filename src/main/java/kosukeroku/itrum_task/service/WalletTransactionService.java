@@ -0,0 +1,113 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletTransactionDTO;
+import kosukeroku.itrum_task.dto.WalletTransactionPageDTO;
+import kosukeroku.itrum_task.exception.InvalidCursorException;
+import kosukeroku.itrum_task.exception.WalletNotFoundException;
+import kosukeroku.itrum_task.mapper.WalletMapper;
+import kosukeroku.itrum_task.model.TransactionStatus;
+import kosukeroku.itrum_task.model.WalletTransaction;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.WalletTransactionRepository;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDateTime;
+import java.util.Base64;
+import java.util.List;
+import java.util.UUID;
+
+@Service
+@Slf4j
+@RequiredArgsConstructor
+public class WalletTransactionService {
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int MAX_PAGE_SIZE = 200;
+
+    private static final String CURSOR_SEPARATOR = "|";
+
+    private final WalletTransactionRepository walletTransactionRepository;
+    private final WalletRepository walletRepository;
+    private final ArchivedWalletRepository archivedWalletRepository;
+    private final WalletMapper walletMapper;
+    private final WalletActivityService walletActivityService;
+
+    // joins the caller's transaction, so the history row commits or rolls back together with the balance change
+    @Transactional
+    public void record(UUID walletId, OperationType operationType, BigDecimal amount, String currency,
+                       BigDecimal balanceAfter, TransactionStatus status) {
+        WalletTransaction transaction = new WalletTransaction();
+        transaction.setWalletId(walletId);
+        transaction.setOperationType(operationType);
+        transaction.setAmount(amount);
+        transaction.setCurrency(currency);
+        transaction.setBalanceAfter(balanceAfter);
+        transaction.setStatus(status);
+
+        walletTransactionRepository.save(transaction);
+        log.debug("Recorded {} {} of {} {} for wallet {}", status, operationType, amount, currency, walletId);
+
+        if (status == TransactionStatus.COMPLETED) { // rejected operations moved no money
+            walletActivityService.accumulate(walletId, operationType, amount, currency);
+        }
+    }
+
+    @Transactional(readOnly = true)
+    public WalletTransactionPageDTO getTransactions(UUID walletId, String cursor, int limit) {
+        int pageSize = Math.min(Math.max(limit, 1), MAX_PAGE_SIZE);
+        log.debug("Getting transactions for wallet: {}, cursor = {}, limit = {}", walletId, cursor, pageSize);
+
+        List<WalletTransaction> transactions; // one extra row tells whether there is a next page
+        if (cursor == null || cursor.isBlank()) {
+            transactions = walletTransactionRepository.findFirstPage(walletId, pageSize + 1);
+            if (transactions.isEmpty() && !walletRepository.existsById(walletId)
+                    && !archivedWalletRepository.existsById(walletId)) {
+                log.warn("Wallet not found: {}", walletId);
+                throw new WalletNotFoundException(walletId);
+            }
+        } else {
+            Cursor after = Cursor.decode(cursor);
+            transactions = walletTransactionRepository.findPageBefore(walletId, after.createdAt(), after.id(), pageSize + 1);
+        }
+
+        boolean hasNext = transactions.size() > pageSize;
+        List<WalletTransaction> page = hasNext ? transactions.subList(0, pageSize) : transactions;
+        List<WalletTransactionDTO> items = walletMapper.toTransactionDtos(page);
+
+        return WalletTransactionPageDTO.builder()
+                .transactions(items)
+                .nextCursor(hasNext ? Cursor.of(page.get(page.size() - 1)).encode() : null)
+                .build();
+    }
+
+    // opaque to clients, carries the (created_at, id) keyset position of the last returned row
+    private record Cursor(LocalDateTime createdAt, UUID id) {
+
+        static Cursor of(WalletTransaction last) {
+            return new Cursor(last.getCreatedAt(), last.getId());
+        }
+
+        static Cursor decode(String cursor) {
+            try {
+                String position = new String(Base64.getUrlDecoder().decode(cursor), StandardCharsets.UTF_8);
+                int separator = position.indexOf(CURSOR_SEPARATOR);
+                return new Cursor(LocalDateTime.parse(position.substring(0, separator)),
+                        UUID.fromString(position.substring(separator + 1)));
+            } catch (RuntimeException ex) { // bad base64, missing separator, unparsable timestamp or uuid
+                throw new InvalidCursorException(cursor);
+            }
+        }
+
+        String encode() {
+            String position = createdAt + CURSOR_SEPARATOR + id;
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(position.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
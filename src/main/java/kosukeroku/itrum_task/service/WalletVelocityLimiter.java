@@ -0,0 +1,227 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.config.WalletLimitProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletRequestDTO;
+import kosukeroku.itrum_task.exception.VelocityLimitExceededException;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.projection.WalletTierView;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.UUID;
+
+// per-wallet velocity limits, checked in memory before any connection or row lock is taken; with cluster
+// ownership every wallet is served by one node, so the local counts are the wallet's counts
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "wallet.limits", name = "enabled", havingValue = "true")
+public class WalletVelocityLimiter {
+
+    private final WalletRepository walletRepository;
+    private final ArchivedWalletRepository archivedWalletRepository;
+    private final WalletLimitProperties properties;
+    private final long windowNanos;
+    private final Map<UUID, Usage>[] shards;
+
+    // handed out by acquire, gives the counted operation back if it didn't go through
+    @FunctionalInterface
+    public interface Permit {
+        void release();
+    }
+
+    // sliding window counter: the previous window counts in proportion to how much of it still overlaps
+    private static final class Usage { // guarded by its shard's monitor
+        private final String tier;
+        private final String currency; // base currency of the wallet
+        private long windowStart;
+        private long lastAccess;
+        private int operations;
+        private int withdrawals;
+        private BigDecimal withdrawn = BigDecimal.ZERO;
+        private int previousOperations;
+        private int previousWithdrawals;
+        private BigDecimal previousWithdrawn = BigDecimal.ZERO;
+
+        private Usage(String tier, String currency, long now) {
+            this.tier = tier;
+            this.currency = currency;
+            this.windowStart = now;
+            this.lastAccess = now;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    public WalletVelocityLimiter(WalletRepository walletRepository, ArchivedWalletRepository archivedWalletRepository,
+                                 WalletLimitProperties properties) {
+        this.walletRepository = walletRepository;
+        this.archivedWalletRepository = archivedWalletRepository;
+        this.properties = properties;
+        this.windowNanos = properties.getWindow().toNanos();
+        this.shards = new Map[properties.getShards()];
+        int maxWallets = properties.getMaxWalletsPerShard();
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new LinkedHashMap<>(16, 0.75f, true) { // access order, the eldest entry is the least recently used
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<UUID, Usage> eldest) {
+                    return size() > maxWallets;
+                }
+            };
+        }
+    }
+
+    // counts the operation or throws; unknown wallets pass, the operation itself reports them
+    public Permit acquire(WalletRequestDTO request) {
+        UUID walletId = request.getWalletId();
+        Map<UUID, Usage> shard = shardOf(walletId);
+        WalletTierView loaded = null;
+        while (true) {
+            synchronized (shard) { // looked up, created and counted under one lock, so eviction can't split the counts
+                Usage usage = shard.get(walletId);
+                if (usage == null && loaded != null) {
+                    usage = new Usage(loaded.getTier(), loaded.getCurrency(), System.nanoTime());
+                    shard.put(walletId, usage);
+                }
+                if (usage != null) {
+                    return count(shard, walletId, usage, request);
+                }
+            }
+            // the tier is read without holding the shard, the next pass creates the entry unless a racing request did
+            loaded = walletRepository.findTierById(walletId)
+                    .or(() -> archivedWalletRepository.findTierById(walletId)) // rehydrated by the operation itself
+                    .orElse(null);
+            if (loaded == null) {
+                return () -> { };
+            }
+        }
+    }
+
+    // must hold the shard's monitor
+    private Permit count(Map<UUID, Usage> shard, UUID walletId, Usage usage, WalletRequestDTO request) {
+        WalletLimitProperties.TierLimits limits = limitsFor(usage.tier);
+        // a hold is where the spending is authorized, its capture later only counts as an operation
+        boolean withdraw = request.getOperationType() == OperationType.WITHDRAW
+                || request.getOperationType() == OperationType.HOLD;
+        // the amount limit is in the base currency, sub-ledger withdrawals count towards the withdrawal count only
+        BigDecimal amount = withdraw && (request.getCurrency() == null || request.getCurrency().equals(usage.currency))
+                ? request.getAmount()
+                : BigDecimal.ZERO;
+
+        long now = System.nanoTime();
+        roll(usage, now);
+        usage.lastAccess = now;
+        double overlap = 1.0 - (double) (now - usage.windowStart) / windowNanos;
+
+        if (limits.getMaxOperations() > 0
+                && usage.previousOperations * overlap + usage.operations + 1 > limits.getMaxOperations()) {
+            throw exceeded(walletId, "operation count", usage, now);
+        }
+        if (withdraw && limits.getMaxWithdrawals() > 0
+                && usage.previousWithdrawals * overlap + usage.withdrawals + 1 > limits.getMaxWithdrawals()) {
+            throw exceeded(walletId, "withdrawal count", usage, now);
+        }
+        if (amount.signum() > 0 && limits.getMaxWithdrawalAmount() != null
+                && usage.previousWithdrawn.multiply(BigDecimal.valueOf(overlap)).add(usage.withdrawn).add(amount)
+                .compareTo(limits.getMaxWithdrawalAmount()) > 0) {
+            throw exceeded(walletId, "withdrawal amount", usage, now);
+        }
+
+        usage.operations++;
+        if (withdraw) {
+            usage.withdrawals++;
+            usage.withdrawn = usage.withdrawn.add(amount);
+        }
+        long windowStart = usage.windowStart;
+        return () -> release(shard, usage, windowStart, withdraw, amount);
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.limits.eviction-interval-ms:60000}")
+    public void evictIdle() {
+        long now = System.nanoTime();
+        long idleNanos = properties.getIdleEviction().toNanos();
+        int evicted = 0;
+        for (Map<UUID, Usage> shard : shards) {
+            synchronized (shard) {
+                Iterator<Usage> iterator = shard.values().iterator();
+                while (iterator.hasNext()) { // least recently used first, stops at the first active wallet
+                    if (now - iterator.next().lastAccess <= idleNanos) {
+                        break;
+                    }
+                    iterator.remove();
+                    evicted++;
+                }
+            }
+        }
+        if (evicted > 0) {
+            log.debug("Evicted {} idle wallets from the velocity limiter", evicted);
+        }
+    }
+
+    private void release(Map<UUID, Usage> shard, Usage usage, long windowStart, boolean withdraw, BigDecimal amount) {
+        synchronized (shard) {
+            roll(usage, System.nanoTime());
+            if (usage.windowStart == windowStart) {
+                usage.operations = Math.max(0, usage.operations - 1);
+                if (withdraw) {
+                    usage.withdrawals = Math.max(0, usage.withdrawals - 1);
+                    usage.withdrawn = usage.withdrawn.subtract(amount).max(BigDecimal.ZERO);
+                }
+            } else if (usage.windowStart == windowStart + windowNanos) {
+                usage.previousOperations = Math.max(0, usage.previousOperations - 1);
+                if (withdraw) {
+                    usage.previousWithdrawals = Math.max(0, usage.previousWithdrawals - 1);
+                    usage.previousWithdrawn = usage.previousWithdrawn.subtract(amount).max(BigDecimal.ZERO);
+                }
+            } // older windows no longer count anyway
+        }
+    }
+
+    // must hold the shard's monitor
+    private void roll(Usage usage, long now) {
+        long elapsedWindows = (now - usage.windowStart) / windowNanos;
+        if (elapsedWindows == 0) {
+            return;
+        }
+        if (elapsedWindows == 1) {
+            usage.previousOperations = usage.operations;
+            usage.previousWithdrawals = usage.withdrawals;
+            usage.previousWithdrawn = usage.withdrawn;
+        } else {
+            usage.previousOperations = 0;
+            usage.previousWithdrawals = 0;
+            usage.previousWithdrawn = BigDecimal.ZERO;
+        }
+        usage.operations = 0;
+        usage.withdrawals = 0;
+        usage.withdrawn = BigDecimal.ZERO;
+        usage.windowStart += elapsedWindows * windowNanos;
+    }
+
+    private VelocityLimitExceededException exceeded(UUID walletId, String limit, Usage usage, long now) {
+        log.warn("Wallet {} exceeded its {} limit (tier {})", walletId, limit, usage.tier);
+        // the earliest point at which the previous window's share has shrunk, not a guarantee
+        Duration retryAfter = Duration.ofNanos(usage.windowStart + windowNanos - now);
+        return new VelocityLimitExceededException(walletId, limit, retryAfter);
+    }
+
+    private WalletLimitProperties.TierLimits limitsFor(String tier) {
+        WalletLimitProperties.TierLimits limits = properties.getTiers().get(tier.toLowerCase(Locale.ROOT));
+        if (limits == null) {
+            limits = properties.getTiers().get(properties.getDefaultTier());
+        }
+        return limits != null ? limits : new WalletLimitProperties.TierLimits();
+    }
+
+    private Map<UUID, Usage> shardOf(UUID walletId) {
+        return shards[Math.floorMod(walletId.hashCode(), shards.length)];
+    }
+}
@@ -0,0 +1,203 @@
+package kosukeroku.itrum_task.service.cluster;
+
+import jakarta.persistence.EntityManagerFactory;
+import kosukeroku.itrum_task.config.ClusterProperties;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WalletShardLease;
+import kosukeroku.itrum_task.repository.ClusterNodeRepository;
+import kosukeroku.itrum_task.repository.WalletShardLeaseRepository;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindFlusher;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindLedger;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// heartbeats this node, leases the shards rendezvous hashing assigns to it among the live nodes and keeps a local
+// view of who owns the rest; the lease table is the source of truth, hashing only decides who asks for a shard
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "wallet.cluster", name = "enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class ClusterMembership implements SmartLifecycle {
+
+    private final ClusterNodeRepository nodeRepository;
+    private final WalletShardLeaseRepository leaseRepository;
+    private final TransactionTemplate transactionTemplate;
+    private final EntityManagerFactory entityManagerFactory;
+    private final ClusterProperties properties;
+    private final ObjectProvider<WriteBehindFlusher> writeBehindFlusher;
+    private final ObjectProvider<WriteBehindLedger> writeBehindLedger;
+
+    // lease end per shard as System.nanoTime(), 0 when not held; taken locally at the start of the renewal so it
+    // always ends before the database-side lease does
+    private AtomicLongArray ownedUntil;
+    private AtomicReferenceArray<String> ownerUrls; // as last read from the lease table
+    private boolean writeBehind; // leases are taken undrained, see WalletShardLeaseRepository.tryAcquire
+
+    private volatile boolean running;
+
+    @Override
+    public void start() {
+        ownedUntil = new AtomicLongArray(properties.getShardCount());
+        ownerUrls = new AtomicReferenceArray<>(properties.getShardCount());
+        writeBehind = writeBehindFlusher.getIfAvailable() != null;
+        // the flusher started in an earlier phase and replayed the log, shards this node held before a crash can
+        // be taken by other nodes again
+        transactionTemplate.executeWithoutResult(status -> leaseRepository.markDrained(properties.getNodeId()));
+        running = true;
+        heartbeat();
+        log.info("Node {} joined the cluster at {}, owns {} of {} shards", properties.getNodeId(),
+                properties.getAdvertisedUrl(), ownedShards().size(), properties.getShardCount());
+    }
+
+    // hands the shards over right away instead of letting the other nodes wait for the leases to expire
+    @Override
+    public void stop() {
+        running = false;
+        Set<Integer> owned = ownedShards();
+        if (!owned.isEmpty()) {
+            release(owned);
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return 1; // after the write-behind flusher, which has to replay the log before shards are served
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.cluster.heartbeat-interval-ms:3000}")
+    public void heartbeat() {
+        if (!running) {
+            return;
+        }
+        try {
+            rebalance();
+        } catch (RuntimeException ex) { // the leases run out on their own if this keeps failing
+            log.error("Cluster heartbeat of node {} failed: {}", properties.getNodeId(), ex.getMessage(), ex);
+        }
+    }
+
+    public int shardOf(UUID walletId) {
+        return ShardAssignment.shardOf(walletId, properties.getShardCount());
+    }
+
+    public boolean ownsLocally(int shard) {
+        return ownedUntil.get(shard) - System.nanoTime() > 0;
+    }
+
+    // null when no node holds a lease for the shard right now
+    public String ownerUrl(int shard) {
+        return ownerUrls.get(shard);
+    }
+
+    private void rebalance() {
+        String nodeId = properties.getNodeId();
+        String url = properties.getAdvertisedUrl();
+        long leaseMillis = properties.getLeaseDuration().toMillis();
+
+        List<String> liveNodes = transactionTemplate.execute(status -> {
+            nodeRepository.heartbeat(nodeId, url);
+            return nodeRepository.findLiveNodeIds(leaseMillis);
+        });
+
+        Set<Integer> wanted = new HashSet<>();
+        for (int shard = 0; shard < properties.getShardCount(); shard++) {
+            if (nodeId.equals(ShardAssignment.ownerOf(shard, liveNodes))) {
+                wanted.add(shard);
+            }
+        }
+
+        Set<Integer> handOver = ownedShards();
+        handOver.removeAll(wanted);
+        if (!handOver.isEmpty()) {
+            release(handOver);
+        }
+
+        long until = System.nanoTime() + properties.getLeaseDuration().toNanos();
+        // a shard still leased by a node that left the hash assignment is taken once that lease expires
+        Set<Integer> acquired = transactionTemplate.execute(status -> {
+            Set<Integer> held = new HashSet<>();
+            for (int shard : wanted) {
+                if (leaseRepository.tryAcquire(shard, nodeId, url, leaseMillis, !writeBehind) == 1) {
+                    held.add(shard);
+                }
+            }
+            return held;
+        });
+
+        if (acquired.stream().anyMatch(shard -> !ownsLocally(shard))) {
+            // newly taken or held again after our lease lapsed: other nodes may have changed these wallets meanwhile
+            entityManagerFactory.getCache().evict(Wallet.class);
+        }
+
+        Set<Integer> lost = new HashSet<>();
+        for (int shard : wanted) { // only after the commit, a rolled back renewal must not extend anything
+            if (acquired.contains(shard)) {
+                ownedUntil.set(shard, until);
+            } else if (ownedUntil.getAndSet(shard, 0) != 0) {
+                lost.add(shard);
+            }
+        }
+        if (!lost.isEmpty()) { // our lease ran out and another node took over, whatever we cached is stale
+            log.warn("Node {} lost {} shards to other nodes", nodeId, lost.size());
+            dropLocalState(lost);
+        }
+
+        for (int shard = 0; shard < properties.getShardCount(); shard++) {
+            ownerUrls.set(shard, null);
+        }
+        for (WalletShardLease lease : leaseRepository.findActive()) {
+            if (lease.getShard() < properties.getShardCount()) {
+                ownerUrls.set(lease.getShard(), lease.getUrl());
+            }
+        }
+        long blocked = wanted.stream().filter(shard -> !acquired.contains(shard) && ownerUrls.get(shard) == null).count();
+        if (blocked > 0) { // expired but not drained: the wallets stay unavailable rather than served without its log
+            log.warn("Node {} can't take {} shards until their previous write-behind owner replays its log", nodeId,
+                    blocked);
+        }
+        log.debug("Node {} sees {} live nodes, holds {} of {} wanted shards", nodeId, liveNodes.size(), acquired.size(),
+                wanted.size());
+    }
+
+    // requests for these shards are routed away first, then unflushed write-behind entries reach the database,
+    // only then may the next owner load the wallets from there
+    private void release(Set<Integer> shards) {
+        shards.forEach(shard -> ownedUntil.set(shard, 0));
+        dropLocalState(shards);
+        transactionTemplate.executeWithoutResult(status -> leaseRepository.release(shards, properties.getNodeId()));
+        log.info("Node {} released {} shards", properties.getNodeId(), shards.size());
+    }
+
+    private void dropLocalState(Set<Integer> shards) {
+        writeBehindFlusher.ifAvailable(WriteBehindFlusher::drain);
+        writeBehindLedger.ifAvailable(ledger -> ledger.evict(walletId -> shards.contains(shardOf(walletId))));
+    }
+
+    private Set<Integer> ownedShards() {
+        Set<Integer> owned = new HashSet<>();
+        for (int shard = 0; shard < ownedUntil.length(); shard++) {
+            if (ownedUntil.get(shard) != 0) {
+                owned.add(shard);
+            }
+        }
+        return owned;
+    }
+}
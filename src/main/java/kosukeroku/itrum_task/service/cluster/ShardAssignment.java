@@ -0,0 +1,35 @@
+package kosukeroku.itrum_task.service.cluster;
+
+import java.util.Collection;
+import java.util.UUID;
+
+// rendezvous hashing: every node scores every shard and the highest score wins, so a node joining or leaving
+// only moves the shards it wins or held, with no ring to maintain
+public final class ShardAssignment {
+
+    private ShardAssignment() {
+    }
+
+    public static int shardOf(UUID walletId, int shardCount) {
+        return (int) Math.floorMod(mix(walletId.getMostSignificantBits() ^ walletId.getLeastSignificantBits()), (long) shardCount);
+    }
+
+    public static String ownerOf(int shard, Collection<String> nodeIds) {
+        String owner = null;
+        long best = Long.MIN_VALUE;
+        for (String nodeId : nodeIds) {
+            long score = mix(((long) nodeId.hashCode() << 32) ^ shard);
+            if (owner == null || score > best || (score == best && nodeId.compareTo(owner) < 0)) {
+                owner = nodeId;
+                best = score;
+            }
+        }
+        return owner;
+    }
+
+    private static long mix(long value) { // SplitMix64 finalizer
+        value = (value ^ (value >>> 30)) * 0xbf58476d1ce4e5b9L;
+        value = (value ^ (value >>> 27)) * 0x94d049bb133111ebL;
+        return value ^ (value >>> 31);
+    }
+}
@@ -0,0 +1,326 @@
+package kosukeroku.itrum_task.service.cluster;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ReadListener;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.ServletInputStream;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletRequestWrapper;
+import jakarta.servlet.http.HttpServletResponse;
+import kosukeroku.itrum_task.config.ClusterProperties;
+import kosukeroku.itrum_task.config.WalletLockProperties;
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.controller.WalletController;
+import kosukeroku.itrum_task.dto.ErrorResponseDTO;
+import kosukeroku.itrum_task.service.RequestDeadline;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.client.ClientHttpRequestFactories;
+import org.springframework.boot.web.client.ClientHttpRequestFactorySettings;
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.util.StreamUtils;
+import org.springframework.web.client.ResourceAccessException;
+import org.springframework.web.client.RestClient;
+import org.springframework.web.client.RestClientException;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.NoRouteToHostException;
+import java.net.SocketTimeoutException;
+import java.net.UnknownHostException;
+import java.time.LocalDateTime;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+// sends wallet operations and balance reads to the node owning the wallet; the owner runs them one wallet at a
+// time under a local lock, so contention is resolved in memory and Postgres rarely sees two waiters on a row
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "wallet.cluster", name = "enabled", havingValue = "true")
+public class WalletOwnershipFilter extends OncePerRequestFilter {
+
+    public static final String FORWARDED_BY_HEADER = "X-Wallet-Forwarded-By"; // set on forwarded requests, stops loops
+
+    private static final String OPERATION_PATH = "/api/v1/wallet";
+    private static final Pattern BALANCE_PATH = Pattern.compile("/api/v1/wallets/([0-9a-fA-F-]{36})");
+
+    private final ClusterMembership membership;
+    private final ClusterProperties properties;
+    private final WalletLockProperties lockProperties;
+    private final boolean writeBehind; // the ledger is node-local state, only the owner may ever touch it
+    private final ObjectMapper objectMapper;
+    private final RestClient restClient;
+    private final ReentrantLock[] stripes;
+
+    public WalletOwnershipFilter(ClusterMembership membership, ClusterProperties properties,
+                                 WalletLockProperties lockProperties, WriteBehindProperties writeBehindProperties,
+                                 ObjectMapper objectMapper, RestClient.Builder restClientBuilder) {
+        this.membership = membership;
+        this.properties = properties;
+        this.lockProperties = lockProperties;
+        this.writeBehind = writeBehindProperties.isEnabled();
+        this.objectMapper = objectMapper;
+        this.restClient = restClientBuilder
+                .requestFactory(ClientHttpRequestFactories.get(ClientHttpRequestFactorySettings.DEFAULTS
+                        .withConnectTimeout(properties.getForwardTimeout())
+                        .withReadTimeout(properties.getForwardTimeout())))
+                .build();
+        this.stripes = new ReentrantLock[properties.getLocalLockStripes()];
+        for (int i = 0; i < stripes.length; i++) {
+            stripes[i] = new ReentrantLock(true); // fair, operations on a wallet run in arrival order
+        }
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !(HttpMethod.POST.matches(request.getMethod()) && OPERATION_PATH.equals(path)
+                || HttpMethod.GET.matches(request.getMethod()) && BALANCE_PATH.matcher(path).matches());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        byte[] body = HttpMethod.POST.matches(request.getMethod()) ? StreamUtils.copyToByteArray(request.getInputStream()) : null;
+        HttpServletRequest current = body != null ? new CachedBodyRequest(request, body) : request;
+
+        UUID walletId = walletId(request, body);
+        if (walletId == null) { // malformed, the controller reports it
+            chain.doFilter(current, response);
+            return;
+        }
+
+        int shard = membership.shardOf(walletId);
+        String ownerUrl = membership.ownerUrl(shard);
+        if (membership.ownsLocally(shard)) {
+            processLocally(walletId, current, response, chain);
+            return;
+        }
+
+        // not ours: during a handover two nodes may disagree for a heartbeat, so a forwarded request is served here
+        // rather than bounced back; without write-behind the row lock keeps that correct, with write-behind it
+        // would run against this node's ledger next to the owner's, so the client retries once leases settled
+        if (request.getHeader(FORWARDED_BY_HEADER) != null || ownerUrl == null) {
+            if (writeBehind) {
+                reject(request, response, HttpStatus.SERVICE_UNAVAILABLE, "Wallet " + walletId
+                        + " is being handed over between nodes, please retry");
+                return;
+            }
+            processLocally(walletId, current, response, chain);
+            return;
+        }
+
+        String target = ownerUrl + request.getRequestURI();
+        if (properties.getRouting() == ClusterProperties.Routing.REDIRECT) {
+            log.debug("Redirecting wallet {} to {}", walletId, ownerUrl);
+            response.setStatus(HttpStatus.TEMPORARY_REDIRECT.value()); // 307 keeps the method and the body
+            response.setHeader(HttpHeaders.LOCATION, target);
+            return;
+        }
+
+        try {
+            forward(target, current, body, response);
+        } catch (RestClientException ex) {
+            if (response.isCommitted()) {
+                throw ex;
+            }
+            if (notConnected(ex) && !writeBehind) {
+                // the request never reached the owner, its lease runs out soon; the row lock makes this safe
+                log.warn("Owner {} of wallet {} is unreachable, processing locally: {}", ownerUrl, walletId, ex.getMessage());
+                processLocally(walletId, current, response, chain);
+                return;
+            }
+            // the owner may have applied the operation already, running it here as well could apply it twice
+            log.warn("Forwarding wallet {} to {} failed: {}", walletId, ownerUrl, ex.getMessage());
+            if (ex.getCause() instanceof SocketTimeoutException) {
+                reject(request, response, HttpStatus.GATEWAY_TIMEOUT, "Owner node of wallet " + walletId
+                        + " did not answer in time, the outcome is unknown");
+            } else {
+                reject(request, response, HttpStatus.SERVICE_UNAVAILABLE, "Owner node of wallet " + walletId
+                        + " is unavailable, please retry");
+            }
+        }
+    }
+
+    // connection refused or no route: nothing was sent, unlike a read timeout or a reset after sending the body
+    private static boolean notConnected(RestClientException ex) {
+        Throwable cause = ex instanceof ResourceAccessException ? ex.getCause() : null;
+        return cause instanceof ConnectException || cause instanceof NoRouteToHostException
+                || cause instanceof UnknownHostException;
+    }
+
+    private void processLocally(UUID walletId, HttpServletRequest request, HttpServletResponse response,
+                                FilterChain chain) throws ServletException, IOException {
+        if (HttpMethod.GET.matches(request.getMethod())) { // balance reads don't lock the row either
+            chain.doFilter(request, response);
+            return;
+        }
+
+        ReentrantLock lock = stripes[Math.floorMod(walletId.hashCode(), stripes.length)];
+        RequestDeadline deadline = deadline(request);
+        long timeoutMillis = lockProperties.getTimeout().toMillis(); // zero or negative: no limit of its own
+        long waitMillis = timeoutMillis > 0 ? Math.min(timeoutMillis, deadline.remainingMillis()) : deadline.remainingMillis();
+        boolean locked;
+        try {
+            if (waitMillis == Long.MAX_VALUE) {
+                lock.lockInterruptibly();
+                locked = true;
+            } else {
+                locked = lock.tryLock(Math.max(0, waitMillis), TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+            locked = false;
+        }
+        if (!locked) { // same answers as a row lock timeout or an expired deadline, nothing was done yet
+            if (deadline.isExpired()) {
+                log.warn("Deadline expired while waiting for the local lock on wallet {}", walletId);
+                reject(request, response, HttpStatus.GATEWAY_TIMEOUT, "Deadline expired before wallet " + walletId
+                        + " could be processed");
+                return;
+            }
+            log.warn("Local lock on wallet {} was not acquired in time", walletId);
+            reject(request, response, HttpStatus.SERVICE_UNAVAILABLE, "Wallet " + walletId
+                    + " is busy, please retry");
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // measured from here, the controller starts its own clock later and only sees what is left
+    private static RequestDeadline deadline(HttpServletRequest request) {
+        String timeout = request.getHeader(WalletController.REQUEST_TIMEOUT_HEADER);
+        if (timeout == null) {
+            return RequestDeadline.none();
+        }
+        try {
+            return RequestDeadline.ofTimeoutMillis(Long.parseLong(timeout.trim()));
+        } catch (NumberFormatException ex) { // the controller rejects it
+            return RequestDeadline.none();
+        }
+    }
+
+    // errors raised here never reach GlobalExceptionHandler, the body has the same shape
+    private void reject(HttpServletRequest request, HttpServletResponse response, HttpStatus status, String message)
+            throws IOException {
+        response.setStatus(status.value());
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        if (status == HttpStatus.SERVICE_UNAVAILABLE) {
+            response.setHeader(HttpHeaders.RETRY_AFTER, String.valueOf(Math.max(1, lockProperties.getRetryAfter().toSeconds())));
+        }
+        objectMapper.writeValue(response.getOutputStream(), ErrorResponseDTO.builder()
+                .timestamp(LocalDateTime.now())
+                .status(status.value())
+                .error(status.getReasonPhrase())
+                .message(message)
+                .path(request.getRequestURI())
+                .build());
+    }
+
+    private void forward(String target, HttpServletRequest request, byte[] body, HttpServletResponse response) {
+        log.debug("Forwarding {} {} to {}", request.getMethod(), request.getRequestURI(), target);
+        RestClient.RequestBodySpec spec = restClient.method(HttpMethod.valueOf(request.getMethod()))
+                .uri(target)
+                .header(FORWARDED_BY_HEADER, properties.getNodeId());
+        copyHeader(request, spec, HttpHeaders.CONTENT_TYPE);
+        copyHeader(request, spec, HttpHeaders.ACCEPT);
+        copyHeader(request, spec, WalletController.REQUEST_TIMEOUT_HEADER);
+        if (body != null) {
+            spec.body(body);
+        }
+        spec.exchange((clientRequest, ownerResponse) -> { // relays errors too, they come from the owner's handler
+            response.setStatus(ownerResponse.getStatusCode().value());
+            ownerResponse.getHeaders().forEach((name, values) -> {
+                if (!HttpHeaders.TRANSFER_ENCODING.equalsIgnoreCase(name) && !HttpHeaders.CONNECTION.equalsIgnoreCase(name)) {
+                    values.forEach(value -> response.addHeader(name, value));
+                }
+            });
+            StreamUtils.copy(ownerResponse.getBody(), response.getOutputStream());
+            return null;
+        });
+    }
+
+    private static void copyHeader(HttpServletRequest request, RestClient.RequestBodySpec spec, String name) {
+        String value = request.getHeader(name);
+        if (value != null) {
+            spec.header(name, value);
+        }
+    }
+
+    private UUID walletId(HttpServletRequest request, byte[] body) {
+        try {
+            if (body == null) {
+                Matcher matcher = BALANCE_PATH.matcher(request.getRequestURI());
+                return matcher.matches() ? UUID.fromString(matcher.group(1)) : null;
+            }
+            JsonNode walletId = objectMapper.readTree(body).get("walletId");
+            return walletId != null && walletId.isTextual() ? UUID.fromString(walletId.asText()) : null;
+        } catch (IOException | IllegalArgumentException ex) {
+            return null;
+        }
+    }
+
+    // the body was read to find the wallet, the controller gets it again from here
+    private static final class CachedBodyRequest extends HttpServletRequestWrapper {
+
+        private final byte[] body;
+
+        private CachedBodyRequest(HttpServletRequest request, byte[] body) {
+            super(request);
+            this.body = body;
+        }
+
+        @Override
+        public ServletInputStream getInputStream() {
+            ByteArrayInputStream input = new ByteArrayInputStream(body);
+            return new ServletInputStream() {
+                @Override
+                public boolean isFinished() {
+                    return input.available() == 0;
+                }
+
+                @Override
+                public boolean isReady() {
+                    return true;
+                }
+
+                @Override
+                public void setReadListener(ReadListener listener) { // the whole body is in memory, always ready
+                    try {
+                        if (!isFinished()) {
+                            listener.onDataAvailable();
+                        }
+                        listener.onAllDataRead();
+                    } catch (IOException ex) {
+                        listener.onError(ex);
+                    }
+                }
+
+                @Override
+                public int read() {
+                    return input.read();
+                }
+
+                @Override
+                public int read(byte[] buffer, int offset, int length) {
+                    return input.read(buffer, offset, length);
+                }
+            };
+        }
+    }
+}
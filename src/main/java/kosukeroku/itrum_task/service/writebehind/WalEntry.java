@@ -0,0 +1,14 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.dto.OperationType;
+
+import java.math.BigDecimal;
+import java.util.UUID;
+
+public record WalEntry(long seq, UUID walletId, OperationType operationType, BigDecimal amount, String currency,
+                       BigDecimal balanceAfter, long timestampMillis) {
+
+    public BigDecimal delta() {
+        return operationType == OperationType.DEPOSIT ? amount : amount.negate();
+    }
+}
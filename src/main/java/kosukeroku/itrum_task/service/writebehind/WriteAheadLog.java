@@ -0,0 +1,329 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.exception.WriteAheadLogException;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+// append-only log of fixed-size records in memory-mapped segment files, fsynced in groups by a single syncer thread
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "wallet.write-behind", name = "enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class WriteAheadLog {
+
+    // record layout: seq(8) wallet id(16) amount(8) balance after(8) operation(1) amount scale(1)
+    // balance scale(1) currency(3) padding(2) timestamp(8) crc32 of the preceding bytes(4) padding(4)
+    static final int RECORD_SIZE = 64;
+    private static final int CRC_OFFSET = 56;
+    private static final int SCALE = 2; // amounts and balances are DECIMAL(19, 2), every record is stored with it
+    private static final String SEGMENT_PREFIX = "wal-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private final WriteBehindProperties properties;
+
+    private final Object lock = new Object();
+    // everything below is guarded by lock
+    private final Deque<WalEntry> unapplied = new ArrayDeque<>(); // durable or not, in seq order
+    private final List<CompletableFuture<Void>> awaitingSync = new ArrayList<>();
+    private final List<Segment> segments = new ArrayList<>(); // oldest first, the last one is being appended to
+    private final List<MappedByteBuffer> unsynced = new ArrayList<>(); // rolled over segments not forced yet
+    private long nextSeq = 1;
+    private long durableSeq;
+    private WriteAheadLogException failure; // once syncing failed nothing is acknowledged any more
+
+    private ScheduledExecutorService syncer;
+
+    private record Segment(Path path, long firstSeq, MappedByteBuffer buffer, int capacity) {
+    }
+
+    public record Appended(long seq, CompletableFuture<Void> durable) { // durable completes once the entry is on disk
+    }
+
+    // replays the segments left by a previous run, entries up to appliedSeq are already in the database
+    public void open(long appliedSeq) {
+        try {
+            Files.createDirectories(properties.getDirectory());
+            synchronized (lock) {
+                recover(appliedSeq);
+                roll();
+            }
+        } catch (IOException ex) {
+            throw new WriteAheadLogException("Failed to open write-ahead log in " + properties.getDirectory(), ex);
+        }
+
+        long interval = properties.getGroupCommitInterval().toNanos();
+        syncer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "wal-syncer");
+            thread.setDaemon(true);
+            return thread;
+        });
+        syncer.scheduleWithFixedDelay(this::sync, interval, interval, TimeUnit.NANOSECONDS);
+        log.info("Write-ahead log opened in {}: {} unapplied entries, next seq {}",
+                properties.getDirectory(), unappliedCount(), nextSeq);
+    }
+
+    public Appended append(UUID walletId, OperationType operationType, BigDecimal amount, String currency,
+                           BigDecimal balanceAfter) {
+        // encoded before a seq is taken: a value that can't be stored fails here, not halfway through a record,
+        // which recovery would take for the torn end of the log and drop everything after it
+        WalEntry unnumbered = new WalEntry(0, walletId, operationType, normalize(amount), currency,
+                normalize(balanceAfter), System.currentTimeMillis());
+        ByteBuffer record = encode(unnumbered);
+        CompletableFuture<Void> durable = new CompletableFuture<>();
+        synchronized (lock) {
+            if (failure != null) {
+                throw failure;
+            }
+            Segment segment = segments.get(segments.size() - 1);
+            if (nextSeq - segment.firstSeq() >= segment.capacity()) {
+                unsynced.add(segment.buffer());
+                roll();
+                segment = segments.get(segments.size() - 1);
+            }
+
+            WalEntry entry = new WalEntry(nextSeq++, walletId, operationType, unnumbered.amount(), currency,
+                    unnumbered.balanceAfter(), unnumbered.timestampMillis());
+            record.putLong(0, entry.seq());
+            record.putInt(CRC_OFFSET, crc(record, 0));
+            segment.buffer().put((int) (entry.seq() - segment.firstSeq()) * RECORD_SIZE, record, 0, RECORD_SIZE);
+            unapplied.addLast(entry);
+            awaitingSync.add(durable);
+            return new Appended(entry.seq(), durable);
+        }
+    }
+
+    // durable entries not yet applied to the database, oldest first
+    public List<WalEntry> peekDurable(int max) {
+        synchronized (lock) {
+            List<WalEntry> batch = new ArrayList<>(Math.min(max, unapplied.size()));
+            for (WalEntry entry : unapplied) {
+                if (batch.size() == max || entry.seq() > durableSeq) {
+                    break;
+                }
+                batch.add(entry);
+            }
+            return batch;
+        }
+    }
+
+    // called after the batch up to seq was committed, segments holding only applied entries are deleted
+    public void markApplied(long seq) {
+        List<Path> obsolete = new ArrayList<>();
+        synchronized (lock) {
+            while (!unapplied.isEmpty() && unapplied.peekFirst().seq() <= seq) {
+                unapplied.pollFirst();
+            }
+            while (segments.size() > 1 && segments.get(1).firstSeq() <= seq + 1) {
+                obsolete.add(segments.remove(0).path());
+            }
+        }
+        for (Path path : obsolete) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException ex) {
+                log.warn("Failed to delete applied write-ahead log segment {}: {}", path, ex.getMessage());
+            }
+        }
+    }
+
+    public int unappliedCount() {
+        synchronized (lock) {
+            return unapplied.size();
+        }
+    }
+
+    public void close() {
+        if (syncer != null) {
+            syncer.shutdown();
+            try {
+                syncer.awaitTermination(5, TimeUnit.SECONDS);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        sync(); // acknowledge whatever is still waiting
+    }
+
+    private void sync() {
+        List<CompletableFuture<Void>> waiting;
+        List<MappedByteBuffer> toForce;
+        long target;
+        synchronized (lock) {
+            if (awaitingSync.isEmpty() || failure != null) {
+                return;
+            }
+            waiting = new ArrayList<>(awaitingSync);
+            awaitingSync.clear();
+            toForce = new ArrayList<>(unsynced);
+            unsynced.clear();
+            toForce.add(segments.get(segments.size() - 1).buffer());
+            target = nextSeq - 1;
+        }
+
+        try {
+            for (MappedByteBuffer buffer : toForce) { // appenders keep writing meanwhile, later records get forced too
+                buffer.force();
+            }
+        } catch (RuntimeException ex) { // force() reports I/O errors as UncheckedIOException
+            WriteAheadLogException broken = new WriteAheadLogException("Failed to sync write-ahead log", ex);
+            synchronized (lock) {
+                failure = broken;
+                waiting.addAll(awaitingSync);
+                awaitingSync.clear();
+            }
+            log.error("Write-ahead log is broken, rejecting all further operations", ex);
+            waiting.forEach(future -> future.completeExceptionally(broken));
+            return;
+        }
+
+        synchronized (lock) {
+            durableSeq = Math.max(durableSeq, target);
+        }
+        waiting.forEach(future -> future.complete(null));
+    }
+
+    // must hold lock
+    private void roll() {
+        int capacity = (int) Math.min(Integer.MAX_VALUE / RECORD_SIZE, properties.getSegmentSize().toBytes() / RECORD_SIZE);
+        Path path = properties.getDirectory().resolve(String.format("%s%020d%s", SEGMENT_PREFIX, nextSeq, SEGMENT_SUFFIX));
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ,
+                StandardOpenOption.WRITE)) {
+            // the mapping stays valid after the channel is closed, fresh pages are zero filled which marks the end
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) capacity * RECORD_SIZE);
+            segments.add(new Segment(path, nextSeq, buffer, capacity));
+        } catch (IOException ex) {
+            throw new WriteAheadLogException("Failed to create write-ahead log segment " + path, ex);
+        }
+    }
+
+    // must hold lock
+    private void recover(long appliedSeq) throws IOException {
+        List<Path> files;
+        try (Stream<Path> listing = Files.list(properties.getDirectory())) {
+            files = listing.filter(path -> path.getFileName().toString().startsWith(SEGMENT_PREFIX))
+                    .sorted()
+                    .toList();
+        }
+
+        long lastSeq = appliedSeq;
+        for (Path path : files) {
+            int records = 0;
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                for (int offset = 0; offset + RECORD_SIZE <= buffer.capacity(); offset += RECORD_SIZE) {
+                    WalEntry entry = read(buffer, offset);
+                    if (entry == null) { // end of segment or a torn record that was never acknowledged
+                        break;
+                    }
+                    if (entry.seq() > appliedSeq) {
+                        unapplied.addLast(entry);
+                    }
+                    lastSeq = Math.max(lastSeq, entry.seq());
+                    records++;
+                }
+            }
+
+            if (records == 0) { // rolled over right before a crash, its name would clash with the next segment
+                Files.delete(path);
+            } else { // never appended to again, deleted by markApplied once its entries are in the database
+                segments.add(new Segment(path, firstSeqOf(path), null, 0));
+            }
+        }
+
+        nextSeq = lastSeq + 1;
+        durableSeq = lastSeq; // everything that survived a restart is on disk
+    }
+
+    private static long firstSeqOf(Path segment) {
+        String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+    }
+
+    // everything but seq and crc, both are filled in under the lock
+    private static ByteBuffer encode(WalEntry entry) {
+        byte[] currency = entry.currency().getBytes(StandardCharsets.US_ASCII);
+        if (currency.length != 3) {
+            throw new WriteAheadLogException("Currency " + entry.currency() + " can't be logged");
+        }
+        ByteBuffer record = ByteBuffer.allocate(RECORD_SIZE);
+        record.putLong(8, entry.walletId().getMostSignificantBits());
+        record.putLong(16, entry.walletId().getLeastSignificantBits());
+        record.putLong(24, unscaled(entry.amount()));
+        record.putLong(32, unscaled(entry.balanceAfter()));
+        record.put(40, (byte) entry.operationType().ordinal());
+        record.put(41, (byte) SCALE);
+        record.put(42, (byte) SCALE);
+        record.put(43, currency);
+        record.putLong(48, entry.timestampMillis());
+        return record;
+    }
+
+    private static BigDecimal normalize(BigDecimal value) {
+        try {
+            return value.setScale(SCALE, RoundingMode.UNNECESSARY);
+        } catch (ArithmeticException ex) {
+            throw new WriteAheadLogException(value + " has more than " + SCALE + " decimal places and can't be logged", ex);
+        }
+    }
+
+    private static long unscaled(BigDecimal value) {
+        try {
+            return value.unscaledValue().longValueExact();
+        } catch (ArithmeticException ex) {
+            throw new WriteAheadLogException(value + " is out of range and can't be logged", ex);
+        }
+    }
+
+    private static WalEntry read(ByteBuffer buffer, int offset) {
+        long seq = buffer.getLong(offset);
+        if (seq == 0 || buffer.getInt(offset + CRC_OFFSET) != crc(buffer, offset)) {
+            return null;
+        }
+        return new WalEntry(seq,
+                new UUID(buffer.getLong(offset + 8), buffer.getLong(offset + 16)),
+                OperationType.values()[buffer.get(offset + 40)],
+                new BigDecimal(BigInteger.valueOf(buffer.getLong(offset + 24)), buffer.get(offset + 41)),
+                currency(buffer, offset + 43),
+                new BigDecimal(BigInteger.valueOf(buffer.getLong(offset + 32)), buffer.get(offset + 42)),
+                buffer.getLong(offset + 48));
+    }
+
+    private static String currency(ByteBuffer buffer, int offset) {
+        byte[] code = new byte[3];
+        buffer.get(offset, code);
+        return new String(code, StandardCharsets.US_ASCII);
+    }
+
+    private static int crc(ByteBuffer buffer, int offset) {
+        CRC32 crc = new CRC32();
+        crc.update(buffer.slice(offset, CRC_OFFSET));
+        return (int) crc.getValue();
+    }
+}
@@ -0,0 +1,148 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.exception.WriteAheadLogException;
+import kosukeroku.itrum_task.model.TransactionStatus;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WriteBehindCheckpoint;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.WriteBehindCheckpointRepository;
+import kosukeroku.itrum_task.service.WalletService;
+import kosukeroku.itrum_task.service.WalletTransactionService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.SmartLifecycle;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+
+// applies durable log entries to the database in batches; the checkpoint commits in the same transaction,
+// so a crash between commit and markApplied only makes the next start skip entries it already applied
+@Slf4j
+@Component
+@ConditionalOnProperty(prefix = "wallet.write-behind", name = "enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class WriteBehindFlusher implements SmartLifecycle {
+
+    private final WriteAheadLog writeAheadLog;
+    private final WriteBehindLedger writeBehindLedger;
+    private final WalletRepository walletRepository;
+    private final WriteBehindCheckpointRepository checkpointRepository;
+    private final WalletTransactionService walletTransactionService;
+    private final WalletService walletService;
+    private final TransactionTemplate transactionTemplate;
+    private final WriteBehindProperties properties;
+
+    private volatile boolean running;
+
+    // runs before the web server starts accepting requests, replayed entries reach the database first
+    @Override
+    public void start() {
+        long appliedSeq = checkpointRepository.findById(properties.getNodeId())
+                .map(WriteBehindCheckpoint::getAppliedSeq)
+                .orElse(0L);
+        writeAheadLog.open(appliedSeq);
+        writeAheadLog.markApplied(appliedSeq); // drops segments fully applied before the last shutdown
+
+        int replayed = writeAheadLog.unappliedCount();
+        while (flushBatch() > 0) {
+            log.debug("Replaying write-ahead log, {} entries left", writeAheadLog.unappliedCount());
+        }
+        if (replayed > 0) {
+            log.info("Replayed {} write-ahead log entries after checkpoint {}", replayed, appliedSeq);
+        }
+        running = true;
+    }
+
+    // runs after the web server stopped, nothing acknowledged stays behind in the log
+    @Override
+    public void stop() {
+        running = false;
+        writeAheadLog.close();
+        while (flushBatch() > 0) {
+            log.debug("Draining write-ahead log, {} entries left", writeAheadLog.unappliedCount());
+        }
+    }
+
+    @Override
+    public boolean isRunning() {
+        return running;
+    }
+
+    @Override
+    public int getPhase() {
+        return 0; // web server lifecycle runs in a later phase
+    }
+
+    @Scheduled(fixedDelayString = "${wallet.write-behind.flush-interval-ms:50}")
+    public void flush() {
+        if (!running) {
+            return;
+        }
+        try {
+            flushBatch();
+        } catch (RuntimeException ex) { // entries stay in the log and are retried on the next run
+            log.error("Write-behind flush failed: {}", ex.getMessage(), ex);
+        }
+    }
+
+    // applies everything durable right now, used when wallets are handed over to another node
+    public void drain() {
+        while (flushBatch() > 0) {
+            log.debug("Draining write-ahead log, {} entries left", writeAheadLog.unappliedCount());
+        }
+    }
+
+    private synchronized int flushBatch() { // scheduled runs and the shutdown drain must not apply a batch twice
+        List<WalEntry> batch = writeAheadLog.peekDurable(properties.getFlushBatchSize());
+        if (batch.isEmpty()) {
+            return 0;
+        }
+        long lastSeq = batch.get(batch.size() - 1).seq();
+
+        Map<UUID, BigDecimal> deltas = new LinkedHashMap<>(); // one UPDATE per wallet, not per entry
+        for (WalEntry entry : batch) {
+            deltas.merge(entry.walletId(), entry.delta(), BigDecimal::add);
+        }
+
+        transactionTemplate.executeWithoutResult(status -> {
+            // entity updates keep the second-level cache entry of each wallet current, a bulk UPDATE would evict
+            // the whole wallets region on every flush
+            Map<UUID, Wallet> wallets = walletRepository.findAllByIdWithLock(deltas.keySet()).stream()
+                    .collect(Collectors.toMap(Wallet::getId, Function.identity()));
+            deltas.forEach((walletId, delta) -> {
+                Wallet wallet = wallets.containsKey(walletId) ? wallets.get(walletId) : restore(walletId, delta);
+                wallet.setBalance(wallet.getBalance().add(delta));
+            });
+            for (WalEntry entry : batch) {
+                walletTransactionService.record(entry.walletId(), entry.operationType(), entry.amount(),
+                        entry.currency(), entry.balanceAfter(), TransactionStatus.COMPLETED);
+            }
+            checkpointRepository.save(new WriteBehindCheckpoint(properties.getNodeId(), lastSeq, LocalDateTime.now()));
+        });
+
+        writeAheadLog.markApplied(lastSeq);
+        writeBehindLedger.evictIdle(lastSeq);
+        log.debug("Flushed {} write-ahead log entries for {} wallets up to seq {}", batch.size(), deltas.size(), lastSeq);
+        return batch.size();
+    }
+
+    // a wallet archived between loading its state and this flush gets the delta on the restored row; a delta that
+    // has no row at all fails the whole batch, the checkpoint stays put and the entries are retried
+    private Wallet restore(UUID walletId, BigDecimal delta) {
+        walletService.rehydrate(walletId); // false if an operation restored it first, the row is there either way
+        return walletRepository.findByIdWithLock(walletId)
+                .orElseThrow(() -> new WriteAheadLogException("Wallet " + walletId + " of logged entries is missing, "
+                        + delta + " was not applied"));
+    }
+}
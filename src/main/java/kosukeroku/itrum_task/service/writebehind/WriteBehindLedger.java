@@ -0,0 +1,243 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletRequestDTO;
+import kosukeroku.itrum_task.dto.WalletResponseDTO;
+import kosukeroku.itrum_task.exception.DeadlineExceededException;
+import kosukeroku.itrum_task.exception.InsufficientFundsException;
+import kosukeroku.itrum_task.exception.WalletNotFoundException;
+import kosukeroku.itrum_task.exception.WriteAheadLogException;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.service.RequestDeadline;
+import kosukeroku.itrum_task.service.WalletService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+
+import java.math.BigDecimal;
+import java.util.Collection;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+// acknowledges base currency operations once they are in the local write-ahead log, WriteBehindFlusher applies
+// them to the wallets table later; the cached balance is authoritative while a wallet has unflushed entries
+@Slf4j
+@Service
+@ConditionalOnProperty(prefix = "wallet.write-behind", name = "enabled", havingValue = "true")
+@RequiredArgsConstructor
+public class WriteBehindLedger {
+
+    private final WalletRepository walletRepository;
+    private final WalletService walletService;
+    private final WriteAheadLog writeAheadLog;
+    private final WriteBehindProperties properties;
+
+    private static final long APPLIED_WAIT_MILLIS = 5000; // hold operations wait at most this for the flusher
+
+    private final Map<UUID, WalletState> wallets = new ConcurrentHashMap<>();
+
+    private final Object appliedMonitor = new Object();
+    private long appliedSeq; // guarded by appliedMonitor, advanced by the flusher
+
+    private static final class WalletState { // guarded by its own monitor
+        private final String currency;
+        private BigDecimal balance;
+        private BigDecimal held; // active holds, only ever changed through the database
+        private long lastSeq; // last log entry of this wallet, the state may only be evicted once it was applied
+        private long lastAccessNanos = System.nanoTime();
+        private boolean evicted;
+
+        private WalletState(String currency, BigDecimal balance, BigDecimal held) {
+            this.currency = currency;
+            this.balance = balance;
+            this.held = held;
+        }
+    }
+
+    public WalletResponseDTO processOperation(WalletRequestDTO request, RequestDeadline deadline) {
+        UUID walletId = request.getWalletId();
+        if (deadline.isExpired()) {
+            log.warn("Deadline expired before processing wallet {}", walletId);
+            throw new DeadlineExceededException(walletId);
+        }
+
+        CompletableFuture<Void> durable;
+        WalletState logged;
+        BigDecimal delta;
+        BigDecimal newBalance;
+        BigDecimal held;
+        String currency;
+        while (true) {
+            WalletState state = state(walletId);
+            synchronized (state) { // serializes operations per wallet, the database row is not locked at all
+                if (state.evicted) { // lost the race against eviction, load a fresh state
+                    continue;
+                }
+                if (WalletService.isHoldOperation(request.getOperationType())) {
+                    return processHoldOperation(walletId, state, request, deadline);
+                }
+                if (request.getCurrency() != null && !request.getCurrency().equals(state.currency)) {
+                    return walletService.processOperation(request, deadline); // sub-ledgers stay synchronous
+                }
+
+                BigDecimal amount = request.getAmount();
+                BigDecimal available = state.balance.subtract(state.held);
+                if (request.getOperationType() == OperationType.WITHDRAW && available.compareTo(amount) < 0) {
+                    throw new InsufficientFundsException(walletId, available, amount);
+                }
+                newBalance = request.getOperationType() == OperationType.DEPOSIT
+                        ? state.balance.add(amount)
+                        : state.balance.subtract(amount);
+
+                WriteAheadLog.Appended appended = writeAheadLog.append(walletId, request.getOperationType(), amount,
+                        state.currency, newBalance);
+                durable = appended.durable();
+                logged = state;
+                delta = newBalance.subtract(state.balance);
+                state.balance = newBalance;
+                state.lastSeq = appended.seq();
+                state.lastAccessNanos = System.nanoTime();
+                held = state.held;
+                currency = state.currency;
+            }
+            break;
+        }
+
+        try {
+            durable.join(); // group commit: waits at most one sync interval, outside the wallet monitor
+        } catch (CompletionException ex) {
+            // the entry may not be on disk, so its change must not stay in the balance later operations are checked
+            // against; operations logged after it on this wallet fail with it and each takes back its own delta
+            synchronized (logged) {
+                logged.balance = logged.balance.subtract(delta);
+            }
+            throw new WriteAheadLogException("Operation on wallet " + walletId + " was not made durable", ex.getCause());
+        }
+
+        log.debug("Operation on wallet {} logged. New balance: {}", walletId, newBalance);
+        return WalletResponseDTO.builder()
+                .id(walletId)
+                .balance(newBalance)
+                .availableBalance(newBalance.subtract(held))
+                .currency(currency)
+                .build();
+    }
+
+    // must hold the state's monitor; holds run synchronously against the database, which first has to have every
+    // logged entry of the wallet, the monitor keeps new ones from being logged until the hold is done
+    private WalletResponseDTO processHoldOperation(UUID walletId, WalletState state, WalletRequestDTO request,
+                                                   RequestDeadline deadline) {
+        awaitApplied(walletId, state.lastSeq, deadline);
+        WalletResponseDTO response = walletService.processOperation(request, deadline);
+        state.balance = response.getBalance();
+        state.held = response.getBalance().subtract(response.getAvailableBalance());
+        state.lastAccessNanos = System.nanoTime();
+        return response;
+    }
+
+    private void awaitApplied(UUID walletId, long seq, RequestDeadline deadline) {
+        long waitMillis = Math.min(APPLIED_WAIT_MILLIS, deadline.remainingMillis());
+        long until = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(waitMillis);
+        synchronized (appliedMonitor) {
+            while (appliedSeq < seq) {
+                long remaining = TimeUnit.NANOSECONDS.toMillis(until - System.nanoTime());
+                if (remaining <= 0) {
+                    throw new WriteAheadLogException("Logged operations of wallet " + walletId
+                            + " were not applied in time for a hold operation");
+                }
+                try {
+                    appliedMonitor.wait(remaining);
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                    throw new WriteAheadLogException("Interrupted while waiting for wallet " + walletId, ex);
+                }
+            }
+        }
+    }
+
+    // read-your-writes for wallets with unflushed entries, the database copy may lag behind by a flush interval
+    public WalletResponseDTO getBalance(UUID walletId) {
+        WalletState state = wallets.get(walletId);
+        if (state == null) {
+            return walletService.getBalance(walletId);
+        }
+        synchronized (state) {
+            return WalletResponseDTO.builder()
+                    .id(walletId)
+                    .balance(state.balance)
+                    .availableBalance(state.balance.subtract(state.held))
+                    .currency(state.currency)
+                    .build();
+        }
+    }
+
+    // called by the flusher after a batch was committed
+    void evictIdle(long appliedSeq) {
+        synchronized (appliedMonitor) {
+            this.appliedSeq = Math.max(this.appliedSeq, appliedSeq);
+            appliedMonitor.notifyAll();
+        }
+        long idleNanos = properties.getIdleEviction().toNanos();
+        long now = System.nanoTime();
+        wallets.forEach((walletId, state) -> {
+            synchronized (state) {
+                if (state.lastSeq <= appliedSeq && now - state.lastAccessNanos > idleNanos) {
+                    state.evicted = true;
+                    wallets.remove(walletId, state);
+                }
+            }
+        });
+    }
+
+    // drops cached wallets regardless of idleness, the next operation reloads them from the database
+    public void evict(Predicate<UUID> walletIds) {
+        wallets.forEach((walletId, state) -> {
+            if (walletIds.test(walletId)) {
+                synchronized (state) {
+                    state.evicted = true;
+                    wallets.remove(walletId, state);
+                }
+            }
+        });
+    }
+
+    // the hold sweeper changed held amounts in the database behind the cached states
+    public void refreshHeld(Collection<UUID> walletIds) {
+        for (UUID walletId : walletIds) {
+            WalletState state = wallets.get(walletId);
+            if (state != null) {
+                synchronized (state) {
+                    walletRepository.findHeldAmountById(walletId).ifPresent(held -> state.held = held);
+                }
+            }
+        }
+    }
+
+    private WalletState state(UUID walletId) {
+        WalletState state = wallets.get(walletId);
+        if (state != null) {
+            return state;
+        }
+        // loaded outside of the map so a slow read doesn't block other wallets; the database is current here
+        // because the flusher applies every entry of a wallet before its state can be evicted
+        Wallet wallet = walletRepository.findByIdUncached(walletId) // a cached copy may predate a shard handover
+                .or(() -> {
+                    walletService.rehydrate(walletId); // false if another operation restored it first, read it anyway
+                    return walletRepository.findByIdUncached(walletId);
+                })
+                .orElseThrow(() -> {
+                    log.warn("Wallet not found: {}", walletId);
+                    return new WalletNotFoundException(walletId);
+                });
+        return wallets.computeIfAbsent(walletId, id -> new WalletState(wallet.getCurrency(), wallet.getBalance(),
+                wallet.getHeldAmount()));
+    }
+}
@@ -3,8 +3,17 @@ package kosukeroku.itrum_task.controller;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import kosukeroku.itrum_task.dto.OperationType;
 import kosukeroku.itrum_task.dto.WalletRequestDTO;
+import kosukeroku.itrum_task.model.HoldStatus;
 import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WalletHold;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletActivityRollupRepository;
+import kosukeroku.itrum_task.repository.WalletBalanceRepository;
+import kosukeroku.itrum_task.repository.WalletHoldRepository;
 import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.WalletTransactionRepository;
+import kosukeroku.itrum_task.service.WalletArchiver;
+import kosukeroku.itrum_task.service.WalletHoldSweeper;
 import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
@@ -12,9 +21,11 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.boot.test.autoconfigure.web.servlet.AutoConfigureMockMvc;
 import org.springframework.boot.test.context.SpringBootTest;
 import org.springframework.http.MediaType;
+import org.springframework.jdbc.core.JdbcTemplate;
 import org.springframework.test.context.DynamicPropertyRegistry;
 import org.springframework.test.context.DynamicPropertySource;
 import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.transaction.support.TransactionTemplate;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
@@ -53,6 +64,8 @@ class WalletControllerIntegrationTest {
         registry.add("spring.datasource.password", postgres::getPassword);
         registry.add("spring.jpa.hibernate.ddl-auto", () -> "create-drop");
         registry.add("spring.jpa.properties.hibernate.dialect", () -> "org.hibernate.dialect.PostgreSQLDialect");
+        registry.add("wallet.lock.timeout", () -> "30s"); // 1000 requests queue on a single row in the concurrency test
+        registry.add("wallet.archive.enabled", () -> "true"); // the archive tests run it by hand
     }
 
     @Autowired
@@ -64,12 +77,44 @@ class WalletControllerIntegrationTest {
     @Autowired
     private WalletRepository walletRepository;
 
+    @Autowired
+    private WalletBalanceRepository walletBalanceRepository;
+
+    @Autowired
+    private WalletTransactionRepository walletTransactionRepository;
+
+    @Autowired
+    private WalletActivityRollupRepository walletActivityRollupRepository;
+
+    @Autowired
+    private WalletHoldRepository walletHoldRepository;
+
+    @Autowired
+    private WalletHoldSweeper walletHoldSweeper;
+
+    @Autowired
+    private ArchivedWalletRepository archivedWalletRepository;
+
+    @Autowired
+    private WalletArchiver walletArchiver;
+
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Autowired
+    private TransactionTemplate transactionTemplate;
+
     private UUID existingWalletId;
     private Wallet existingWallet;
 
     @BeforeEach
     void setUp() {
+        walletActivityRollupRepository.deleteAll();
+        walletTransactionRepository.deleteAll();
+        walletBalanceRepository.deleteAll();
+        walletHoldRepository.deleteAll();
         walletRepository.deleteAll();
+        archivedWalletRepository.deleteAll();
 
         existingWallet = new Wallet();
         existingWallet.setId(UUID.fromString("123a4567-b89c-12d3-e456-123456789012"));
@@ -83,7 +128,12 @@ class WalletControllerIntegrationTest {
 
     @AfterEach
     void tearDown() {
+        walletActivityRollupRepository.deleteAll();
+        walletTransactionRepository.deleteAll();
+        walletBalanceRepository.deleteAll();
+        walletHoldRepository.deleteAll();
         walletRepository.deleteAll();
+        archivedWalletRepository.deleteAll();
     }
 
     @Test
@@ -229,6 +279,26 @@ class WalletControllerIntegrationTest {
         assertThat(unchangedWallet.getBalance()).isEqualByComparingTo("1000.00"); // verifying balance hasn't changed
     }
 
+    @Test
+    void processOperation_ShouldReturn400_WhenAmountHasMoreThanTwoDecimalPlaces() throws Exception {
+        // given a positive amount whose scale doesn't fit the balance columns or the write-ahead log
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("1e-200"))
+                .build();
+
+        // then
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Validation Error"));
+
+        Wallet unchangedWallet = walletRepository.findById(existingWalletId).orElseThrow();
+        assertThat(unchangedWallet.getBalance()).isEqualByComparingTo("1000.00");
+    }
+
     @Test
     void processOperation_ShouldReturn400_WhenOperationTypeIsInvalid() throws Exception {
         // given
@@ -263,6 +333,27 @@ class WalletControllerIntegrationTest {
                 .andExpect(jsonPath("$.message").value("Invalid request format"));
     }
 
+    @Test
+    void processOperation_ShouldReturn504_WhenRequestDeadlineIsExpired() throws Exception {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.00"))
+                .build();
+
+        // then
+        mockMvc.perform(post("/api/v1/wallet")
+                        .header(WalletController.REQUEST_TIMEOUT_HEADER, "0")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isGatewayTimeout())
+                .andExpect(jsonPath("$.error").value("Deadline Exceeded"));
+
+        Wallet unchangedWallet = walletRepository.findById(existingWalletId).orElseThrow();
+        assertThat(unchangedWallet.getBalance()).isEqualByComparingTo("1000.00"); // verifying balance hasn't changed
+    }
+
     @Test
     void getBalance_ShouldReturn200AndBalance_WhenWalletExists() throws Exception {
         mockMvc.perform(get("/api/v1/wallets/{walletId}", existingWalletId))
@@ -294,6 +385,113 @@ class WalletControllerIntegrationTest {
                 .andExpect(jsonPath("$.path").value("/api/v1/wallets/" + invalidUUID));
     }
 
+    @Test
+    void getAllBalances_ShouldReturnBaseAndSubLedgerBalances_AfterDepositInAnotherCurrency() throws Exception {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("25.00"))
+                .currency("USD")
+                .build();
+
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.currency").value("USD"))
+                .andExpect(jsonPath("$.balance").value(25.00));
+
+        // then
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/balances", existingWalletId))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.balances[0].currency").value(Wallet.DEFAULT_CURRENCY))
+                .andExpect(jsonPath("$.balances[0].balance").value(1000.00)) // base balance untouched
+                .andExpect(jsonPath("$.balances[1].currency").value("USD"))
+                .andExpect(jsonPath("$.balances[1].balance").value(25.00));
+    }
+
+    @Test
+    void getTransactions_ShouldPageThroughHistoryNewestFirst() throws Exception {
+        // given
+        for (String amount : List.of("10.00", "20.00", "30.00")) {
+            WalletRequestDTO request = WalletRequestDTO.builder()
+                    .walletId(existingWalletId)
+                    .operationType(OperationType.DEPOSIT)
+                    .amount(new BigDecimal(amount))
+                    .build();
+            mockMvc.perform(post("/api/v1/wallet")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(request)))
+                    .andExpect(status().isOk());
+        }
+
+        // when
+        String firstPage = mockMvc.perform(get("/api/v1/wallets/{walletId}/transactions", existingWalletId)
+                        .param("limit", "2"))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.transactions.length()").value(2))
+                .andExpect(jsonPath("$.transactions[0].amount").value(30.00))
+                .andExpect(jsonPath("$.transactions[0].balanceAfter").value(1060.00))
+                .andExpect(jsonPath("$.transactions[1].amount").value(20.00))
+                .andReturn().getResponse().getContentAsString();
+        String cursor = objectMapper.readTree(firstPage).get("nextCursor").asText();
+
+        // then
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/transactions", existingWalletId)
+                        .param("limit", "2")
+                        .param("cursor", cursor))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.transactions.length()").value(1))
+                .andExpect(jsonPath("$.transactions[0].amount").value(10.00))
+                .andExpect(jsonPath("$.nextCursor").doesNotExist());
+    }
+
+    @Test
+    void getTransactions_ShouldReturn404_WhenWalletIsNotFound() throws Exception {
+        UUID nonExistentId = UUID.fromString("00000000-0000-0000-0000-000000000000");
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/transactions", nonExistentId))
+                .andExpect(status().isNotFound())
+                .andExpect(jsonPath("$.error").value("Wallet Not Found"));
+    }
+
+    @Test
+    void getActivity_ShouldReturnDailyTotals_FromRollups() throws Exception {
+        // given
+        for (OperationType type : List.of(OperationType.DEPOSIT, OperationType.DEPOSIT, OperationType.WITHDRAW)) {
+            WalletRequestDTO request = WalletRequestDTO.builder()
+                    .walletId(existingWalletId)
+                    .operationType(type)
+                    .amount(new BigDecimal("100.00"))
+                    .build();
+            mockMvc.perform(post("/api/v1/wallet")
+                            .contentType(MediaType.APPLICATION_JSON)
+                            .content(objectMapper.writeValueAsString(request)))
+                    .andExpect(status().isOk());
+        }
+
+        // then
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/activity", existingWalletId)
+                        .param("granularity", "DAY")
+                        .param("from", LocalDateTime.now().minusDays(1).toString())
+                        .param("to", LocalDateTime.now().plusHours(1).toString()))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.buckets[0].currency").value(Wallet.DEFAULT_CURRENCY))
+                .andExpect(jsonPath("$.buckets[0].depositCount").value(2))
+                .andExpect(jsonPath("$.buckets[0].depositAmount").value(200.00))
+                .andExpect(jsonPath("$.buckets[0].withdrawalCount").value(1))
+                .andExpect(jsonPath("$.buckets[0].withdrawalAmount").value(100.00));
+    }
+
+    @Test
+    void getActivity_ShouldReturn400_WhenRangeIsInverted() throws Exception {
+        mockMvc.perform(get("/api/v1/wallets/{walletId}/activity", existingWalletId)
+                        .param("from", "2024-05-02T00:00:00")
+                        .param("to", "2024-05-01T00:00:00"))
+                .andExpect(status().isBadRequest())
+                .andExpect(jsonPath("$.error").value("Invalid Request"));
+    }
+
     @Test
     void processOperation_ShouldHandle1000ConcurrentRequests() throws Exception {
         // given
@@ -342,4 +540,202 @@ class WalletControllerIntegrationTest {
         assertThat(finalWallet.getBalance())
                 .isEqualByComparingTo(new BigDecimal(10000)); // resulting amount should be 1000 (number of threads) * 10 (deposit amount) = 10000
     }
-}
\ No newline at end of file
+
+    @Test
+    void processOperation_ShouldReserveAndCaptureFunds_WhenHoldIsCaptured() throws Exception {
+        // given
+        WalletRequestDTO hold = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.HOLD)
+                .amount(new BigDecimal("700.00"))
+                .build();
+
+        String response = mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(hold)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.balance").value(1000.00))
+                .andExpect(jsonPath("$.availableBalance").value(300.00))
+                .andReturn().getResponse().getContentAsString();
+        UUID holdId = UUID.fromString(objectMapper.readTree(response).get("holdId").asText());
+
+        WalletRequestDTO withdrawal = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("500.00"))
+                .build();
+
+        WalletRequestDTO capture = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.CAPTURE)
+                .amount(new BigDecimal("600.00"))
+                .holdId(holdId)
+                .build();
+
+        // then
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(withdrawal)))
+                .andExpect(status().isBadRequest()); // 500 > 300 available, although the balance is 1000
+
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(capture)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.balance").value(400.00))
+                .andExpect(jsonPath("$.availableBalance").value(400.00)); // the uncaptured 100 went back
+
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(capture)))
+                .andExpect(status().isBadRequest()); // already captured
+
+        assertThat(walletHoldRepository.findById(holdId).orElseThrow().getStatus()).isEqualTo(HoldStatus.CAPTURED);
+    }
+
+    @Test
+    void processOperation_ShouldReturn404_WhenHoldIsNotFound() throws Exception {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.RELEASE)
+                .amount(new BigDecimal("10.00"))
+                .holdId(UUID.randomUUID())
+                .build();
+
+        // then
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isNotFound());
+    }
+
+    @Test
+    void sweep_ShouldReleaseExpiredHolds() {
+        // given
+        existingWallet.setHeldAmount(new BigDecimal("500.00"));
+        walletRepository.save(existingWallet);
+        for (int i = 0; i < 2; i++) {
+            WalletHold hold = new WalletHold();
+            hold.setWalletId(existingWalletId);
+            hold.setAmount(new BigDecimal("250.00"));
+            hold.setCurrency(Wallet.DEFAULT_CURRENCY);
+            hold.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+            walletHoldRepository.save(hold);
+        }
+
+        // when
+        walletHoldSweeper.sweep();
+
+        // then
+        Wallet wallet = walletRepository.findById(existingWalletId).orElseThrow();
+        assertThat(wallet.getHeldAmount()).isEqualByComparingTo("0.00");
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1000.00");
+        assertThat(walletHoldRepository.findAll()).allMatch(hold -> hold.getStatus() == HoldStatus.EXPIRED);
+    }
+
+    @Test
+    void archive_ShouldMoveDormantWallet_AndOperationShouldRehydrateIt() throws Exception {
+        // given
+        backdate(existingWalletId, 365);
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("500.00"))
+                .build();
+
+        // when
+        walletArchiver.archive();
+
+        // then
+        assertThat(walletRepository.findById(existingWalletId)).isEmpty();
+        assertThat(archivedWalletRepository.findById(existingWalletId)).isPresent();
+
+        mockMvc.perform(get("/api/v1/wallets/{walletId}", existingWalletId)) // served from the archive
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.balance").value(1000.00));
+
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk())
+                .andExpect(jsonPath("$.balance").value(1500.00));
+
+        assertThat(archivedWalletRepository.findById(existingWalletId)).isEmpty();
+        Wallet wallet = walletRepository.findById(existingWalletId).orElseThrow();
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1500.00");
+        assertThat(wallet.getUpdatedAt()).isAfter(LocalDateTime.now().minusDays(1)); // not archived again right away
+    }
+
+    @Test
+    void archive_ShouldRehydrateOnce_WhenConcurrentOperationsHitArchivedWallet() throws Exception {
+        // given
+        backdate(existingWalletId, 365);
+        walletArchiver.archive();
+        assertThat(archivedWalletRepository.findById(existingWalletId)).isPresent();
+
+        int requests = 20;
+        ExecutorService executor = Executors.newFixedThreadPool(requests);
+        CountDownLatch start = new CountDownLatch(1); // all requests find the wallet archived and race to restore it
+        String requestJson = objectMapper.writeValueAsString(WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("10.00"))
+                .build());
+
+        // when
+        List<CompletableFuture<Void>> futures = IntStream.range(0, requests)
+                .mapToObj(i -> CompletableFuture.runAsync(() -> {
+                    try {
+                        start.await();
+                        mockMvc.perform(post("/api/v1/wallet")
+                                        .contentType(MediaType.APPLICATION_JSON)
+                                        .content(requestJson))
+                                .andExpect(status().isOk()); // the losers of the restore must not get a 404
+                    } catch (Exception e) {
+                        throw new RuntimeException(e);
+                    }
+                }, executor))
+                .toList();
+        start.countDown();
+
+        CompletableFuture.allOf(futures.toArray(new CompletableFuture[0]))
+                .get(30, TimeUnit.SECONDS);
+        executor.shutdown();
+
+        // then
+        assertThat(archivedWalletRepository.findById(existingWalletId)).isEmpty();
+        Wallet wallet = walletRepository.findById(existingWalletId).orElseThrow();
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1200.00"); // 1000 + 20 * 10
+    }
+
+    @Test
+    void archive_ShouldKeepDormantWallet_WhenItHasSubLedgers() throws Exception {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(existingWalletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("50.00"))
+                .currency("USD")
+                .build();
+        mockMvc.perform(post("/api/v1/wallet")
+                        .contentType(MediaType.APPLICATION_JSON)
+                        .content(objectMapper.writeValueAsString(request)))
+                .andExpect(status().isOk());
+        backdate(existingWalletId, 365);
+
+        // when
+        walletArchiver.archive();
+
+        // then
+        assertThat(walletRepository.findById(existingWalletId)).isPresent();
+        assertThat(walletBalanceRepository.findAll()).hasSize(1); // the cascade would have dropped it
+        assertThat(archivedWalletRepository.count()).isZero();
+    }
+
+    // @UpdateTimestamp would overwrite it on save; a transaction of its own, auto-commit is off in the pool
+    private void backdate(UUID walletId, int days) {
+        transactionTemplate.executeWithoutResult(status -> jdbcTemplate.update(
+                "UPDATE wallets SET updated_at = ? WHERE id = ?", LocalDateTime.now().minusDays(days), walletId));
+    }
+}
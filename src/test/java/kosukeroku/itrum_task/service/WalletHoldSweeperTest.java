@@ -0,0 +1,117 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.config.WalletHoldProperties;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.repository.WalletHoldRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.projection.ExpiredHoldView;
+import kosukeroku.itrum_task.repository.projection.HeldAmountView;
+import kosukeroku.itrum_task.service.cluster.ClusterMembership;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindLedger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WalletHoldSweeperTest {
+
+    @Mock
+    private WalletHoldRepository walletHoldRepository;
+
+    @Mock
+    private WalletRepository walletRepository;
+
+    @Mock
+    private ObjectProvider<WriteBehindLedger> writeBehindLedger;
+
+    @Mock
+    private ObjectProvider<ClusterMembership> clusterMembership;
+
+    @Mock
+    private ClusterMembership membership;
+
+    private WalletHoldSweeper sweeper;
+
+    @BeforeEach
+    void setUp() {
+        WalletHoldProperties properties = new WalletHoldProperties();
+        properties.setSweepBatchSize(2);
+        sweeper = new WalletHoldSweeper(walletHoldRepository, walletRepository,
+                new TransactionTemplate(mock(PlatformTransactionManager.class)), properties, writeBehindLedger,
+                clusterMembership);
+    }
+
+    @Test
+    void sweep_ShouldReleaseOnlyHoldsOfOwnedWallets_WhenClusterIsEnabled() {
+        // given
+        UUID ownedWalletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+        UUID foreignWalletId = UUID.fromString("987a6543-b21c-12d3-e456-123456789012");
+        UUID ownedHoldId = UUID.randomUUID();
+        Wallet ownedWallet = new Wallet();
+        ownedWallet.setId(ownedWalletId);
+        ownedWallet.setHeldAmount(new BigDecimal("300.00"));
+
+        when(clusterMembership.getIfAvailable()).thenReturn(membership);
+        when(membership.shardOf(ownedWalletId)).thenReturn(1);
+        when(membership.shardOf(foreignWalletId)).thenReturn(2);
+        when(membership.ownsLocally(1)).thenReturn(true);
+        when(membership.ownsLocally(2)).thenReturn(false);
+        when(walletHoldRepository.findExpired(2, 0))
+                .thenReturn(List.of(expiredHold(UUID.randomUUID(), foreignWalletId), expiredHold(ownedHoldId, ownedWalletId)));
+        when(walletHoldRepository.findExpired(2, 1)).thenReturn(List.of());
+        when(walletRepository.lockAllSkipLocked(List.of(ownedWalletId))).thenReturn(List.of(ownedWalletId));
+        when(walletHoldRepository.sumActive(List.of(ownedHoldId)))
+                .thenReturn(List.of(heldAmount(ownedWalletId, new BigDecimal("100.00"))));
+        when(walletHoldRepository.expire(List.of(ownedHoldId))).thenReturn(1);
+        when(walletRepository.findAllById(Set.of(ownedWalletId))).thenReturn(List.of(ownedWallet));
+
+        // when
+        sweeper.sweep();
+
+        // then the next batch skips the foreign hold left at the head instead of reading it again
+        assertThat(ownedWallet.getHeldAmount()).isEqualByComparingTo("200.00");
+        verify(walletHoldRepository).findExpired(2, 1);
+        verify(walletRepository).lockAllSkipLocked(List.of(ownedWalletId));
+    }
+
+    private static ExpiredHoldView expiredHold(UUID id, UUID walletId) {
+        return new ExpiredHoldView() {
+            @Override
+            public UUID getId() {
+                return id;
+            }
+
+            @Override
+            public UUID getWalletId() {
+                return walletId;
+            }
+        };
+    }
+
+    private static HeldAmountView heldAmount(UUID walletId, BigDecimal amount) {
+        return new HeldAmountView() {
+            @Override
+            public UUID getWalletId() {
+                return walletId;
+            }
+
+            @Override
+            public BigDecimal getAmount() {
+                return amount;
+            }
+        };
+    }
+}
@@ -1,19 +1,35 @@
 package kosukeroku.itrum_task.service;
 
+import kosukeroku.itrum_task.config.LockWaitPolicy;
+import kosukeroku.itrum_task.config.WalletHoldProperties;
+import kosukeroku.itrum_task.config.WalletLockProperties;
 import kosukeroku.itrum_task.dto.OperationType;
 import kosukeroku.itrum_task.dto.WalletRequestDTO;
 import kosukeroku.itrum_task.dto.WalletResponseDTO;
+import kosukeroku.itrum_task.exception.DeadlineExceededException;
 import kosukeroku.itrum_task.exception.InsufficientFundsException;
+import kosukeroku.itrum_task.exception.InvalidHoldOperationException;
+import kosukeroku.itrum_task.exception.WalletLockTimeoutException;
 import kosukeroku.itrum_task.exception.WalletNotFoundException;
 import kosukeroku.itrum_task.mapper.WalletMapper;
+import kosukeroku.itrum_task.model.ArchivedWallet;
+import kosukeroku.itrum_task.model.HoldStatus;
+import kosukeroku.itrum_task.model.TransactionStatus;
 import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WalletBalance;
+import kosukeroku.itrum_task.model.WalletHold;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletBalanceRepository;
+import kosukeroku.itrum_task.repository.WalletHoldRepository;
 import kosukeroku.itrum_task.repository.WalletRepository;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.Test;
 import org.junit.jupiter.api.extension.ExtendWith;
 import org.mockito.InjectMocks;
 import org.mockito.Mock;
+import org.mockito.Spy;
 import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.dao.CannotAcquireLockException;
 
 import java.math.BigDecimal;
 import java.time.LocalDateTime;
@@ -29,9 +45,27 @@ class WalletServiceTest {
     @Mock
     private WalletRepository walletRepository;
 
+    @Mock
+    private WalletBalanceRepository walletBalanceRepository;
+
     @Mock
     private WalletMapper walletMapper;
 
+    @Spy
+    private WalletLockProperties lockProperties = new WalletLockProperties();
+
+    @Mock
+    private WalletTransactionService walletTransactionService;
+
+    @Mock
+    private WalletHoldRepository walletHoldRepository;
+
+    @Spy
+    private WalletHoldProperties holdProperties = new WalletHoldProperties();
+
+    @Mock
+    private ArchivedWalletRepository archivedWalletRepository;
+
     @InjectMocks
     private WalletService walletService;
 
@@ -116,7 +150,7 @@ class WalletServiceTest {
         assertThatThrownBy(() -> walletService.processOperation(request))
                 .isInstanceOf(WalletNotFoundException.class);
 
-        verify(walletRepository).findByIdWithLock(walletId);
+        verify(walletRepository, times(2)).findByIdWithLock(walletId); // again after the attempt to rehydrate
         verifyNoInteractions(walletMapper);
     }
 
@@ -171,6 +205,82 @@ class WalletServiceTest {
         verifyNoInteractions(walletMapper);
     }
 
+    @Test
+    void getBalance_ShouldReadArchive_WhenWalletIsArchived() {
+        // given
+        ArchivedWallet archived = new ArchivedWallet(walletId, new BigDecimal("1000.00"), "RUB", "STANDARD",
+                LocalDateTime.now(), LocalDateTime.now(), LocalDateTime.now());
+        when(walletRepository.findById(walletId)).thenReturn(Optional.empty());
+        when(archivedWalletRepository.findById(walletId)).thenReturn(Optional.of(archived));
+        when(walletMapper.toArchivedResponseDto(archived)).thenReturn(walletResponseDTO);
+
+        // when
+        WalletResponseDTO response = walletService.getBalance(walletId);
+
+        // then
+        assertThat(response.getBalance()).isEqualByComparingTo("1000.00");
+        verify(archivedWalletRepository, never()).restore(any()); // reads leave the wallet archived
+    }
+
+    @Test
+    void getBalance_ShouldReadRestoredWallet_WhenOperationMovesItOutOfTheArchiveBetweenReads() {
+        // given the wallet is archived on the first read and already restored on the second
+        when(walletRepository.findById(walletId)).thenReturn(Optional.empty());
+        when(archivedWalletRepository.findById(walletId)).thenReturn(Optional.empty());
+        when(walletRepository.findByIdUncached(walletId)).thenReturn(Optional.of(wallet));
+        when(walletMapper.toResponseDto(wallet)).thenReturn(walletResponseDTO);
+
+        // when
+        WalletResponseDTO response = walletService.getBalance(walletId);
+
+        // then
+        assertThat(response).isSameAs(walletResponseDTO);
+        verify(walletRepository).findByIdUncached(walletId);
+    }
+
+    @Test
+    void processOperation_ShouldRehydrateWallet_WhenWalletIsArchived() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("500.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.empty(), Optional.of(wallet));
+        when(archivedWalletRepository.restore(walletId)).thenReturn(Optional.of(walletId));
+        when(walletMapper.toResponseDto(any(Wallet.class))).thenReturn(walletResponseDTO);
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        verify(archivedWalletRepository).restore(walletId);
+        verify(walletRepository, times(2)).findByIdWithLock(walletId);
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1500.00"); // 1000 + 500
+    }
+
+    @Test
+    void processOperation_ShouldUseRestoredWallet_WhenConcurrentOperationRehydratedItFirst() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("500.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.empty(), Optional.of(wallet));
+        when(archivedWalletRepository.restore(walletId)).thenReturn(Optional.empty()); // the other one moved it
+        when(walletMapper.toResponseDto(any(Wallet.class))).thenReturn(walletResponseDTO);
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        verify(walletRepository, times(2)).findByIdWithLock(walletId);
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1500.00");
+    }
+
     @Test
     void processOperation_ShouldReturnCorrectNumbers_WhenHandlingMultipleOperations() {
         // given
@@ -210,4 +320,333 @@ class WalletServiceTest {
         // then
         assertThat(wallet.getBalance()).isEqualByComparingTo("1400.00");  // 1200 + 200
     }
+
+    @Test
+    void processOperation_ShouldThrowException_WhenDeadlineIsAlreadyExpired() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.00"))
+                .build();
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request, RequestDeadline.ofTimeoutMillis(0L)))
+                .isInstanceOf(DeadlineExceededException.class);
+
+        verifyNoInteractions(walletRepository, walletMapper); // failed fast, no connection work at all
+    }
+
+    @Test
+    void processOperation_ShouldSetLockAndStatementTimeouts_WhenDeadlineIsGiven() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+
+        // when
+        walletService.processOperation(request, RequestDeadline.ofTimeoutMillis(60_000L));
+
+        // then
+        verify(walletRepository).setLocalLockTimeout("2000ms"); // configured lock timeout is tighter than the deadline
+        verify(walletRepository).setLocalStatementTimeout(anyString());
+    }
+
+    @Test
+    void processOperation_ShouldThrowLockTimeout_WhenLockIsNotAcquired() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("100.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenThrow(new CannotAcquireLockException("lock timeout"));
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(WalletLockTimeoutException.class);
+
+        verifyNoInteractions(walletMapper);
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1000.00"); // balance unchanged
+    }
+
+    @Test
+    void processOperation_ShouldThrowLockTimeout_WhenRowIsSkippedAsLocked() {
+        // given
+        lockProperties.setWaitPolicy(LockWaitPolicy.SKIP_LOCKED);
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("100.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLockSkipLocked(walletId)).thenReturn(Optional.empty());
+        when(walletRepository.existsById(walletId)).thenReturn(true);
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(WalletLockTimeoutException.class);
+
+        verify(walletRepository, never()).findByIdWithLock(any());
+    }
+
+    @Test
+    void processOperation_ShouldOpenSubLedger_WhenDepositingInNewCurrency() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("50.00"))
+                .currency("USD")
+                .build();
+
+        WalletBalance usdBalance = new WalletBalance();
+        usdBalance.setWalletId(walletId);
+        usdBalance.setCurrency("USD");
+
+        when(walletBalanceRepository.findByIdWithLock(walletId, "USD"))
+                .thenReturn(Optional.empty())
+                .thenReturn(Optional.of(usdBalance));
+        when(walletRepository.findCurrencyById(walletId)).thenReturn(Optional.of(Wallet.DEFAULT_CURRENCY));
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        verify(walletBalanceRepository).createIfAbsent(walletId, "USD");
+        verify(walletRepository, never()).findByIdWithLock(any()); // base balance row is not locked
+        assertThat(usdBalance.getBalance()).isEqualByComparingTo("50.00");
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1000.00"); // base balance unchanged
+    }
+
+    @Test
+    void processOperation_ShouldUseBaseBalance_WhenCurrencyIsWalletBaseCurrency() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("100.00"))
+                .currency(Wallet.DEFAULT_CURRENCY)
+                .build();
+
+        when(walletBalanceRepository.findByIdWithLock(walletId, Wallet.DEFAULT_CURRENCY)).thenReturn(Optional.empty());
+        when(walletRepository.findCurrencyById(walletId)).thenReturn(Optional.of(Wallet.DEFAULT_CURRENCY));
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        verify(walletBalanceRepository, never()).createIfAbsent(any(), any());
+        assertThat(wallet.getBalance()).isEqualByComparingTo("900.00"); // 1000 - 100
+    }
+
+    @Test
+    void processOperation_ShouldThrowException_WhenWithdrawingFromCurrencyWithoutSubLedger() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("10.00"))
+                .currency("EUR")
+                .build();
+
+        when(walletBalanceRepository.findByIdWithLock(walletId, "EUR")).thenReturn(Optional.empty());
+        when(walletRepository.findCurrencyById(walletId)).thenReturn(Optional.of(Wallet.DEFAULT_CURRENCY));
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        verify(walletBalanceRepository, never()).createIfAbsent(any(), any());
+    }
+
+    @Test
+    void processOperation_ShouldRecordCompletedTransaction_WhenOperationSucceeds() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.DEPOSIT)
+                .amount(new BigDecimal("500.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        verify(walletTransactionService).record(walletId, OperationType.DEPOSIT, new BigDecimal("500.00"),
+                Wallet.DEFAULT_CURRENCY, new BigDecimal("1500.00"), TransactionStatus.COMPLETED);
+    }
+
+    @Test
+    void processOperation_ShouldRecordRejectedTransaction_WhenFundsAreInsufficient() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("2000.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        verify(walletTransactionService).record(walletId, OperationType.WITHDRAW, new BigDecimal("2000.00"),
+                Wallet.DEFAULT_CURRENCY, new BigDecimal("1000.00"), TransactionStatus.REJECTED);
+    }
+
+    @Test
+    void processOperation_ShouldThrowException_WhenWithdrawalExceedsAvailableBalance() {
+        // given
+        wallet.setHeldAmount(new BigDecimal("600.00"));
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.WITHDRAW)
+                .amount(new BigDecimal("500.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1000.00");
+    }
+
+    @Test
+    void processOperation_ShouldReserveFunds_WhenHoldIsPlaced() {
+        // given
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.HOLD)
+                .amount(new BigDecimal("300.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+        when(walletMapper.toResponseDto(wallet)).thenReturn(walletResponseDTO);
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1000.00");
+        assertThat(wallet.getHeldAmount()).isEqualByComparingTo("300.00");
+        verify(walletHoldRepository).save(argThat(hold -> hold.getAmount().compareTo(new BigDecimal("300.00")) == 0
+                && hold.getStatus() == HoldStatus.ACTIVE && hold.getExpiresAt().isAfter(LocalDateTime.now())));
+    }
+
+    @Test
+    void processOperation_ShouldThrowException_WhenHoldExceedsAvailableBalance() {
+        // given
+        wallet.setHeldAmount(new BigDecimal("800.00"));
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.HOLD)
+                .amount(new BigDecimal("300.00"))
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(InsufficientFundsException.class);
+
+        verify(walletHoldRepository, never()).save(any());
+        verify(walletTransactionService).record(walletId, OperationType.HOLD, new BigDecimal("300.00"),
+                Wallet.DEFAULT_CURRENCY, new BigDecimal("1000.00"), TransactionStatus.REJECTED);
+    }
+
+    @Test
+    void processOperation_ShouldTakeCapturedAmountAndReleaseRest_WhenHoldIsCaptured() {
+        // given
+        WalletHold hold = activeHold("300.00");
+        wallet.setHeldAmount(new BigDecimal("300.00"));
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.CAPTURE)
+                .amount(new BigDecimal("250.00"))
+                .holdId(hold.getId())
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+        when(walletHoldRepository.findByIdAndWalletId(hold.getId(), walletId)).thenReturn(Optional.of(hold));
+        when(walletMapper.toResponseDto(wallet)).thenReturn(walletResponseDTO);
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        assertThat(wallet.getBalance()).isEqualByComparingTo("750.00");
+        assertThat(wallet.getHeldAmount()).isEqualByComparingTo("0.00");
+        assertThat(hold.getStatus()).isEqualTo(HoldStatus.CAPTURED);
+    }
+
+    @Test
+    void processOperation_ShouldKeepHoldActive_WhenPartiallyReleased() {
+        // given
+        WalletHold hold = activeHold("300.00");
+        wallet.setHeldAmount(new BigDecimal("300.00"));
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.RELEASE)
+                .amount(new BigDecimal("100.00"))
+                .holdId(hold.getId())
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+        when(walletHoldRepository.findByIdAndWalletId(hold.getId(), walletId)).thenReturn(Optional.of(hold));
+        when(walletMapper.toResponseDto(wallet)).thenReturn(walletResponseDTO);
+
+        // when
+        walletService.processOperation(request);
+
+        // then
+        assertThat(wallet.getHeldAmount()).isEqualByComparingTo("200.00");
+        assertThat(hold.getAmount()).isEqualByComparingTo("200.00");
+        assertThat(hold.getStatus()).isEqualTo(HoldStatus.ACTIVE);
+    }
+
+    @Test
+    void processOperation_ShouldThrowException_WhenCapturingExpiredHold() {
+        // given
+        WalletHold hold = activeHold("300.00");
+        hold.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+        wallet.setHeldAmount(new BigDecimal("300.00"));
+        WalletRequestDTO request = WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(OperationType.CAPTURE)
+                .amount(new BigDecimal("300.00"))
+                .holdId(hold.getId())
+                .build();
+
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(wallet));
+        when(walletHoldRepository.findByIdAndWalletId(hold.getId(), walletId)).thenReturn(Optional.of(hold));
+
+        // then
+        assertThatThrownBy(() -> walletService.processOperation(request))
+                .isInstanceOf(InvalidHoldOperationException.class)
+                .hasMessageContaining("expired");
+
+        assertThat(wallet.getBalance()).isEqualByComparingTo("1000.00");
+    }
+
+    private WalletHold activeHold(String amount) {
+        WalletHold hold = new WalletHold();
+        hold.setId(UUID.randomUUID());
+        hold.setWalletId(walletId);
+        hold.setAmount(new BigDecimal(amount));
+        hold.setCurrency(Wallet.DEFAULT_CURRENCY);
+        hold.setExpiresAt(LocalDateTime.now().plusHours(1));
+        return hold;
+    }
 }
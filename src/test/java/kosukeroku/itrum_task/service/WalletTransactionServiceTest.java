@@ -0,0 +1,146 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletTransactionPageDTO;
+import kosukeroku.itrum_task.exception.InvalidCursorException;
+import kosukeroku.itrum_task.exception.WalletNotFoundException;
+import kosukeroku.itrum_task.mapper.WalletMapper;
+import kosukeroku.itrum_task.model.TransactionStatus;
+import kosukeroku.itrum_task.model.WalletTransaction;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.WalletTransactionRepository;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.InjectMocks;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.UUID;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WalletTransactionServiceTest {
+
+    @Mock
+    private WalletTransactionRepository walletTransactionRepository;
+
+    @Mock
+    private WalletRepository walletRepository;
+
+    @Mock
+    private ArchivedWalletRepository archivedWalletRepository;
+
+    @Mock
+    private WalletMapper walletMapper;
+
+    @Mock
+    private WalletActivityService walletActivityService;
+
+    @InjectMocks
+    private WalletTransactionService walletTransactionService;
+
+    private UUID walletId;
+    private LocalDateTime now;
+
+    @BeforeEach
+    void setUp() {
+        walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+        now = LocalDateTime.of(2024, 5, 1, 12, 0);
+    }
+
+    @Test
+    void record_ShouldAccumulateActivity_OnlyForCompletedOperations() {
+        // when
+        walletTransactionService.record(walletId, OperationType.DEPOSIT, new BigDecimal("10.00"), "RUB",
+                new BigDecimal("10.00"), TransactionStatus.COMPLETED);
+        walletTransactionService.record(walletId, OperationType.WITHDRAW, new BigDecimal("99.00"), "RUB",
+                new BigDecimal("10.00"), TransactionStatus.REJECTED);
+
+        // then
+        verify(walletTransactionRepository, times(2)).save(any(WalletTransaction.class));
+        verify(walletActivityService).accumulate(walletId, OperationType.DEPOSIT, new BigDecimal("10.00"), "RUB");
+        verifyNoMoreInteractions(walletActivityService);
+    }
+
+    @Test
+    void getTransactions_ShouldReturnNextCursor_WhenMoreRowsExist() {
+        // given
+        List<WalletTransaction> rows = transactions(3); // limit 2 + 1 lookahead row
+        when(walletTransactionRepository.findFirstPage(walletId, 3)).thenReturn(rows);
+
+        // when
+        WalletTransactionPageDTO page = walletTransactionService.getTransactions(walletId, null, 2);
+
+        // then
+        assertThat(page.getNextCursor()).isNotNull();
+        verify(walletMapper).toTransactionDtos(rows.subList(0, 2));
+
+        // when following the cursor
+        walletTransactionService.getTransactions(walletId, page.getNextCursor(), 2);
+
+        // then the keyset position is the last returned row
+        WalletTransaction last = rows.get(1);
+        verify(walletTransactionRepository).findPageBefore(walletId, last.getCreatedAt(), last.getId(), 3);
+    }
+
+    @Test
+    void getTransactions_ShouldReturnNoCursor_OnLastPage() {
+        // given
+        when(walletTransactionRepository.findFirstPage(walletId, 3)).thenReturn(transactions(2));
+
+        // when
+        WalletTransactionPageDTO page = walletTransactionService.getTransactions(walletId, null, 2);
+
+        // then
+        assertThat(page.getNextCursor()).isNull();
+        verifyNoInteractions(walletRepository); // wallet existence is only checked for an empty first page
+    }
+
+    @Test
+    void getTransactions_ShouldThrowException_WhenWalletIsNotFound() {
+        // given
+        when(walletTransactionRepository.findFirstPage(walletId, WalletTransactionService.DEFAULT_PAGE_SIZE + 1))
+                .thenReturn(List.of());
+        when(walletRepository.existsById(walletId)).thenReturn(false);
+
+        // then
+        assertThatThrownBy(() -> walletTransactionService.getTransactions(walletId, null, WalletTransactionService.DEFAULT_PAGE_SIZE))
+                .isInstanceOf(WalletNotFoundException.class);
+    }
+
+    @Test
+    void getTransactions_ShouldThrowException_WhenCursorIsMalformed() {
+        assertThatThrownBy(() -> walletTransactionService.getTransactions(walletId, "not-a-cursor", 10))
+                .isInstanceOf(InvalidCursorException.class);
+
+        verifyNoInteractions(walletTransactionRepository);
+    }
+
+    @Test
+    void getTransactions_ShouldClampLimit_WhenLimitIsTooLarge() {
+        // given
+        when(walletRepository.existsById(walletId)).thenReturn(true);
+
+        // when
+        walletTransactionService.getTransactions(walletId, null, 10_000);
+
+        // then
+        verify(walletTransactionRepository).findFirstPage(walletId, WalletTransactionService.MAX_PAGE_SIZE + 1);
+    }
+
+    private List<WalletTransaction> transactions(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> new WalletTransaction(UUID.randomUUID(), walletId, OperationType.DEPOSIT,
+                        new BigDecimal("10.00"), "RUB", new BigDecimal("10.00"), TransactionStatus.COMPLETED,
+                        now.minusMinutes(i)))
+                .toList();
+    }
+}
@@ -0,0 +1,205 @@
+package kosukeroku.itrum_task.service;
+
+import kosukeroku.itrum_task.config.WalletLimitProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletRequestDTO;
+import kosukeroku.itrum_task.exception.VelocityLimitExceededException;
+import kosukeroku.itrum_task.repository.ArchivedWalletRepository;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.projection.WalletTierView;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WalletVelocityLimiterTest {
+
+    @Mock
+    private WalletRepository walletRepository;
+
+    @Mock
+    private ArchivedWalletRepository archivedWalletRepository;
+
+    private WalletLimitProperties properties;
+    private WalletVelocityLimiter limiter;
+    private UUID walletId;
+
+    @BeforeEach
+    void setUp() {
+        WalletLimitProperties.TierLimits standard = new WalletLimitProperties.TierLimits();
+        standard.setMaxOperations(5);
+        standard.setMaxWithdrawals(2);
+        standard.setMaxWithdrawalAmount(new BigDecimal("300.00"));
+        WalletLimitProperties.TierLimits premium = new WalletLimitProperties.TierLimits();
+        premium.setMaxWithdrawals(10);
+
+        properties = new WalletLimitProperties();
+        properties.getTiers().put("standard", standard);
+        properties.getTiers().put("premium", premium);
+        limiter = new WalletVelocityLimiter(walletRepository, archivedWalletRepository, properties);
+
+        walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+    }
+
+    @Test
+    void acquire_ShouldThrow_WhenWithdrawalCountIsExceeded() {
+        // given
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("STANDARD")));
+        limiter.acquire(request(OperationType.WITHDRAW, "10.00"));
+        limiter.acquire(request(OperationType.WITHDRAW, "10.00"));
+
+        // when & then
+        assertThatThrownBy(() -> limiter.acquire(request(OperationType.WITHDRAW, "10.00")))
+                .isInstanceOf(VelocityLimitExceededException.class)
+                .hasMessageContaining("withdrawal count");
+        assertThatCode(() -> limiter.acquire(request(OperationType.DEPOSIT, "10.00"))).doesNotThrowAnyException();
+        verify(walletRepository, times(1)).findTierById(walletId); // tier is cached with the counters
+    }
+
+    @Test
+    void acquire_ShouldThrow_WhenWithdrawalAmountIsExceeded() {
+        // given
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("STANDARD")));
+        limiter.acquire(request(OperationType.WITHDRAW, "250.00"));
+
+        // when & then
+        assertThatThrownBy(() -> limiter.acquire(request(OperationType.WITHDRAW, "50.01")))
+                .isInstanceOf(VelocityLimitExceededException.class)
+                .hasMessageContaining("withdrawal amount");
+    }
+
+    @Test
+    void acquire_ShouldNotAddSubLedgerAmounts_ToBaseCurrencyAmountLimit() {
+        // given
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("STANDARD")));
+        WalletRequestDTO usd = request(OperationType.WITHDRAW, "250.00");
+        usd.setCurrency("USD");
+        limiter.acquire(usd);
+
+        // when & then the 300.00 limit is in RUB, USD withdrawals only count towards the withdrawal count
+        assertThatCode(() -> limiter.acquire(request(OperationType.WITHDRAW, "250.00"))).doesNotThrowAnyException();
+    }
+
+    @Test
+    void acquire_ShouldKeepOneCounter_WhenWalletIsLoadedConcurrently() throws Exception {
+        // given every request misses the cache at first and loads the tier
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("STANDARD")));
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Future<Boolean>> results = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            results.add(executor.submit(() -> {
+                start.await();
+                try {
+                    limiter.acquire(request(OperationType.DEPOSIT, "1.00"));
+                    return true;
+                } catch (VelocityLimitExceededException ex) {
+                    return false;
+                }
+            }));
+        }
+
+        // when
+        start.countDown();
+        int passed = 0;
+        for (Future<Boolean> result : results) {
+            passed += result.get(5, TimeUnit.SECONDS) ? 1 : 0;
+        }
+        executor.shutdown();
+
+        // then the 5 operations of the standard tier, however the entry was created
+        assertThat(passed).isEqualTo(5);
+    }
+
+    @Test
+    void acquire_ShouldAllowAgain_WhenPermitIsReleased() {
+        // given
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("STANDARD")));
+        limiter.acquire(request(OperationType.WITHDRAW, "10.00"));
+        WalletVelocityLimiter.Permit permit = limiter.acquire(request(OperationType.WITHDRAW, "10.00"));
+
+        // when
+        permit.release();
+
+        // then
+        assertThatCode(() -> limiter.acquire(request(OperationType.WITHDRAW, "10.00"))).doesNotThrowAnyException();
+    }
+
+    @Test
+    void acquire_ShouldApplyLimitsOfWalletTier() {
+        // given
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("PREMIUM")));
+
+        // when & then
+        for (int i = 0; i < 10; i++) {
+            limiter.acquire(request(OperationType.WITHDRAW, "1000.00")); // no amount or operation limit on premium
+        }
+        assertThatThrownBy(() -> limiter.acquire(request(OperationType.WITHDRAW, "1.00")))
+                .isInstanceOf(VelocityLimitExceededException.class);
+    }
+
+    @Test
+    void acquire_ShouldPass_WhenWalletIsNotFound() {
+        // given
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.empty());
+
+        // when & then
+        for (int i = 0; i < 10; i++) {
+            assertThatCode(() -> limiter.acquire(request(OperationType.WITHDRAW, "1000.00"))).doesNotThrowAnyException();
+        }
+    }
+
+    @Test
+    void evictIdle_ShouldDropWallets_WhenIdleLongerThanConfigured() {
+        // given
+        properties.setIdleEviction(Duration.ZERO);
+        when(walletRepository.findTierById(walletId)).thenReturn(Optional.of(tier("STANDARD")));
+        limiter.acquire(request(OperationType.DEPOSIT, "10.00"));
+
+        // when
+        limiter.evictIdle();
+        limiter.acquire(request(OperationType.DEPOSIT, "10.00"));
+
+        // then
+        verify(walletRepository, times(2)).findTierById(walletId); // state was dropped and loaded again
+    }
+
+    private static WalletTierView tier(String tier) {
+        return new WalletTierView() {
+            @Override
+            public String getTier() {
+                return tier;
+            }
+
+            @Override
+            public String getCurrency() {
+                return "RUB";
+            }
+        };
+    }
+
+    private WalletRequestDTO request(OperationType operationType, String amount) {
+        return WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(operationType)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}
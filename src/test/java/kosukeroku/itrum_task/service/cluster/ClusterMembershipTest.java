@@ -0,0 +1,173 @@
+package kosukeroku.itrum_task.service.cluster;
+
+import jakarta.persistence.Cache;
+import jakarta.persistence.EntityManagerFactory;
+import kosukeroku.itrum_task.config.ClusterProperties;
+import kosukeroku.itrum_task.model.WalletShardLease;
+import kosukeroku.itrum_task.repository.ClusterNodeRepository;
+import kosukeroku.itrum_task.repository.WalletShardLeaseRepository;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindFlusher;
+import kosukeroku.itrum_task.service.writebehind.WriteBehindLedger;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class ClusterMembershipTest {
+
+    private static final int SHARDS = 16;
+
+    @Mock
+    private ClusterNodeRepository nodeRepository;
+
+    @Mock
+    private WalletShardLeaseRepository leaseRepository;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    @Mock
+    private EntityManagerFactory entityManagerFactory;
+
+    @Mock
+    private Cache cache;
+
+    @Mock
+    private ObjectProvider<WriteBehindFlusher> writeBehindFlusher;
+
+    @Mock
+    private ObjectProvider<WriteBehindLedger> writeBehindLedger;
+
+    private ClusterMembership membership;
+
+    @BeforeEach
+    void setUp() {
+        ClusterProperties properties = new ClusterProperties();
+        properties.setNodeId("node-a");
+        properties.setAdvertisedUrl("http://node-a:8081");
+        properties.setShardCount(SHARDS);
+        membership = new ClusterMembership(nodeRepository, leaseRepository, new TransactionTemplate(transactionManager),
+                entityManagerFactory, properties, writeBehindFlusher, writeBehindLedger);
+        lenient().when(entityManagerFactory.getCache()).thenReturn(cache);
+    }
+
+    @Test
+    void start_ShouldLeaseAllShards_WhenAlone() {
+        // given
+        when(nodeRepository.findLiveNodeIds(anyLong())).thenReturn(List.of("node-a"));
+        when(leaseRepository.tryAcquire(anyInt(), eq("node-a"), eq("http://node-a:8081"), anyLong(), eq(true))).thenReturn(1);
+
+        // when
+        membership.start();
+
+        // then
+        assertThat(IntStream.range(0, SHARDS)).allMatch(membership::ownsLocally);
+        verify(leaseRepository, times(SHARDS)).tryAcquire(anyInt(), eq("node-a"), any(), anyLong(), anyBoolean());
+        verify(cache).evict(any()); // freshly acquired wallets may have been changed by their previous owner
+        verify(leaseRepository).markDrained("node-a");
+    }
+
+    @Test
+    void start_ShouldLeaseUndrained_WhenWriteBehindIsEnabled() {
+        // given
+        when(writeBehindFlusher.getIfAvailable()).thenReturn(mock(WriteBehindFlusher.class));
+        when(nodeRepository.findLiveNodeIds(anyLong())).thenReturn(List.of("node-a"));
+        when(leaseRepository.tryAcquire(anyInt(), eq("node-a"), any(), anyLong(), eq(false))).thenReturn(1);
+
+        // when
+        membership.start();
+
+        // then other nodes can't take these shards after a crash, only after this node replayed its log
+        verify(leaseRepository, times(SHARDS)).tryAcquire(anyInt(), eq("node-a"), any(), anyLong(), eq(false));
+        verify(leaseRepository, never()).tryAcquire(anyInt(), any(), any(), anyLong(), eq(true));
+    }
+
+    @Test
+    void stop_ShouldDrainAndReleaseAllOwnedShards() {
+        // given
+        when(nodeRepository.findLiveNodeIds(anyLong())).thenReturn(List.of("node-a"));
+        when(leaseRepository.tryAcquire(anyInt(), eq("node-a"), any(), anyLong(), anyBoolean())).thenReturn(1);
+        membership.start();
+
+        // when
+        membership.stop();
+
+        // then
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<Integer>> released = ArgumentCaptor.forClass(Collection.class);
+        verify(leaseRepository).release(released.capture(), eq("node-a"));
+        assertThat(released.getValue()).hasSize(SHARDS);
+        InOrder order = inOrder(writeBehindFlusher, leaseRepository);
+        order.verify(writeBehindFlusher).ifAvailable(any()); // drained first, the release marks the leases drained
+        order.verify(leaseRepository).release(any(), eq("node-a"));
+        assertThat(IntStream.range(0, SHARDS)).noneMatch(membership::ownsLocally);
+        assertThat(membership.isRunning()).isFalse();
+    }
+
+    @Test
+    void heartbeat_ShouldHandOverShards_WhenAnotherNodeJoins() {
+        // given
+        when(nodeRepository.findLiveNodeIds(anyLong())).thenReturn(List.of("node-a"), List.of("node-a", "node-b"));
+        when(leaseRepository.tryAcquire(anyInt(), eq("node-a"), any(), anyLong(), anyBoolean())).thenReturn(1);
+        membership.start();
+        Set<Integer> toNodeB = IntStream.range(0, SHARDS).boxed()
+                .filter(shard -> "node-b".equals(ShardAssignment.ownerOf(shard, List.of("node-a", "node-b"))))
+                .collect(Collectors.toSet());
+        assertThat(toNodeB).isNotEmpty();
+        when(leaseRepository.findActive()).thenReturn(toNodeB.stream()
+                .map(shard -> new WalletShardLease(shard, "node-b", "http://node-b:8081", LocalDateTime.now().plusSeconds(10), true))
+                .toList());
+
+        // when
+        membership.heartbeat();
+
+        // then
+        @SuppressWarnings("unchecked")
+        ArgumentCaptor<Collection<Integer>> released = ArgumentCaptor.forClass(Collection.class);
+        verify(leaseRepository).release(released.capture(), eq("node-a"));
+        assertThat(released.getValue()).containsExactlyInAnyOrderElementsOf(toNodeB);
+        verify(writeBehindFlusher).ifAvailable(any()); // unflushed entries reach the database before node-b loads them
+        verify(writeBehindLedger).ifAvailable(any());
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertThat(membership.ownsLocally(shard)).isEqualTo(!toNodeB.contains(shard));
+        }
+        assertThat(membership.ownerUrl(toNodeB.iterator().next())).isEqualTo("http://node-b:8081");
+    }
+
+    @Test
+    void heartbeat_ShouldDropLocalState_WhenLeaseWasTakenOver() {
+        // given
+        when(nodeRepository.findLiveNodeIds(anyLong())).thenReturn(List.of("node-a"));
+        when(leaseRepository.tryAcquire(anyInt(), eq("node-a"), any(), anyLong(), anyBoolean())).thenReturn(1);
+        membership.start();
+        when(leaseRepository.tryAcquire(eq(3), eq("node-a"), any(), anyLong(), anyBoolean())).thenReturn(0); // lapsed and taken
+
+        // when
+        membership.heartbeat();
+
+        // then
+        assertThat(membership.ownsLocally(3)).isFalse();
+        assertThat(membership.ownsLocally(4)).isTrue();
+        verify(leaseRepository, never()).release(any(), any()); // not ours to release any more
+        verify(writeBehindFlusher).ifAvailable(any());
+        verify(writeBehindLedger).ifAvailable(any());
+    }
+}
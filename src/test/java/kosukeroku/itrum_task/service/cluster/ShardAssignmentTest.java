@@ -0,0 +1,76 @@
+package kosukeroku.itrum_task.service.cluster;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import static org.assertj.core.api.Assertions.*;
+
+class ShardAssignmentTest {
+
+    private static final int SHARDS = 256;
+
+    @Test
+    void shardOf_ShouldBeStableAndInRange() {
+        // given
+        UUID walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+
+        // when
+        int shard = ShardAssignment.shardOf(walletId, SHARDS);
+
+        // then
+        assertThat(shard).isBetween(0, SHARDS - 1);
+        assertThat(ShardAssignment.shardOf(UUID.fromString(walletId.toString()), SHARDS)).isEqualTo(shard);
+    }
+
+    @Test
+    void ownerOf_ShouldNotDependOnNodeOrder() {
+        // given
+        List<String> nodes = List.of("node-1", "node-2", "node-3");
+        List<String> reversed = List.of("node-3", "node-2", "node-1");
+
+        // when & then
+        for (int shard = 0; shard < SHARDS; shard++) {
+            assertThat(ShardAssignment.ownerOf(shard, reversed)).isEqualTo(ShardAssignment.ownerOf(shard, nodes));
+        }
+    }
+
+    @Test
+    void ownerOf_ShouldSpreadShardsOverNodes() {
+        // given
+        List<String> nodes = List.of("node-1", "node-2", "node-3");
+
+        // when
+        Map<String, Integer> counts = new HashMap<>();
+        for (int shard = 0; shard < SHARDS; shard++) {
+            counts.merge(ShardAssignment.ownerOf(shard, nodes), 1, Integer::sum);
+        }
+
+        // then
+        assertThat(counts).containsOnlyKeys(nodes);
+        assertThat(counts.values()).allSatisfy(count -> assertThat(count).isBetween(SHARDS / 6, SHARDS / 2));
+    }
+
+    @Test
+    void ownerOf_WhenNodeLeaves_ShouldOnlyMoveItsShards() {
+        // given
+        List<String> before = List.of("node-1", "node-2", "node-3");
+        List<String> after = List.of("node-1", "node-3");
+
+        // when & then
+        for (int shard = 0; shard < SHARDS; shard++) {
+            String owner = ShardAssignment.ownerOf(shard, before);
+            if (!owner.equals("node-2")) {
+                assertThat(ShardAssignment.ownerOf(shard, after)).isEqualTo(owner);
+            }
+        }
+    }
+
+    @Test
+    void ownerOf_WhenNoNodes_ShouldReturnNull() {
+        assertThat(ShardAssignment.ownerOf(0, List.of())).isNull();
+    }
+}
@@ -0,0 +1,324 @@
+package kosukeroku.itrum_task.service.cluster;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.sun.net.httpserver.HttpServer;
+import jakarta.servlet.FilterChain;
+import kosukeroku.itrum_task.config.ClusterProperties;
+import kosukeroku.itrum_task.config.WalletLockProperties;
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.controller.WalletController;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+import org.springframework.web.client.RestClient;
+
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WalletOwnershipFilterTest {
+
+    private static final int SHARD = 7;
+    private static final String OWNER_BODY = "{\"balance\":1500.00}";
+
+    @Mock
+    private ClusterMembership membership;
+
+    @Mock
+    private FilterChain chain;
+
+    private ClusterProperties properties;
+    private WalletLockProperties lockProperties;
+    private WriteBehindProperties writeBehindProperties;
+    private HttpServer owner;
+    private final AtomicReference<String> forwardedBy = new AtomicReference<>();
+    private volatile long ownerDelayMillis;
+    private UUID walletId;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        properties = new ClusterProperties();
+        properties.setNodeId("node-a");
+        properties.setForwardTimeout(Duration.ofMillis(500));
+        properties.setLocalLockStripes(16);
+        lockProperties = new WalletLockProperties();
+        writeBehindProperties = new WriteBehindProperties();
+
+        owner = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        owner.createContext("/", exchange -> {
+            forwardedBy.set(exchange.getRequestHeaders().getFirst(WalletOwnershipFilter.FORWARDED_BY_HEADER));
+            exchange.getRequestBody().readAllBytes();
+            try {
+                Thread.sleep(ownerDelayMillis);
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            byte[] body = OWNER_BODY.getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add(HttpHeaders.CONTENT_TYPE, "application/json");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        owner.start();
+
+        walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+        when(membership.shardOf(walletId)).thenReturn(SHARD);
+    }
+
+    @AfterEach
+    void tearDown() {
+        owner.stop(0);
+    }
+
+    @Test
+    void doFilter_ShouldProcessLocally_WhenThisNodeOwnsTheWallet() throws Exception {
+        // given
+        when(membership.ownsLocally(SHARD)).thenReturn(true);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(operation(), response, chain);
+
+        // then
+        verify(chain).doFilter(any(), eq(response));
+        assertThat(forwardedBy.get()).isNull();
+    }
+
+    @Test
+    void doFilter_ShouldForwardToOwner_AndRelayItsResponse() throws Exception {
+        // given
+        ownedBy(ownerUrl());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(operation(), response, chain);
+
+        // then
+        assertThat(response.getStatus()).isEqualTo(200);
+        assertThat(response.getContentAsString()).isEqualTo(OWNER_BODY);
+        assertThat(forwardedBy.get()).isEqualTo("node-a");
+        verifyNoInteractions(chain);
+    }
+
+    @Test
+    void doFilter_ShouldRedirectToOwner_WhenRoutingIsRedirect() throws Exception {
+        // given
+        properties.setRouting(ClusterProperties.Routing.REDIRECT);
+        ownedBy(ownerUrl());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(operation(), response, chain);
+
+        // then
+        assertThat(response.getStatus()).isEqualTo(307);
+        assertThat(response.getHeader(HttpHeaders.LOCATION)).isEqualTo(ownerUrl() + "/api/v1/wallet");
+        assertThat(forwardedBy.get()).isNull();
+        verifyNoInteractions(chain);
+    }
+
+    @Test
+    void doFilter_ShouldFallBackLocally_WhenOwnerRefusesTheConnection() throws Exception {
+        // given
+        ownedBy(closedPortUrl());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(operation(), response, chain);
+
+        // then
+        verify(chain).doFilter(any(), eq(response));
+    }
+
+    @Test
+    void doFilter_ShouldAnswer504AndNotFallBack_WhenOwnerTimesOut() throws Exception {
+        // given the owner got the request and may still apply it
+        ownerDelayMillis = 2000;
+        ownedBy(ownerUrl());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(operation(), response, chain);
+
+        // then
+        assertThat(response.getStatus()).isEqualTo(504);
+        verifyNoInteractions(chain);
+    }
+
+    @Test
+    void doFilter_ShouldAnswer503_WhenOwnerIsUnreachableWithWriteBehind() throws Exception {
+        // given
+        writeBehindProperties.setEnabled(true);
+        ownedBy(closedPortUrl());
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(operation(), response, chain);
+
+        // then
+        assertThat(response.getStatus()).isEqualTo(503);
+        assertThat(response.getHeader(HttpHeaders.RETRY_AFTER)).isEqualTo("1");
+        verifyNoInteractions(chain);
+    }
+
+    @Test
+    void doFilter_ShouldAnswer503_WhenForwardedRequestReachesNonOwnerWithWriteBehind() throws Exception {
+        // given a handover in progress: the sender thinks we own the wallet, we don't any more
+        writeBehindProperties.setEnabled(true);
+        ownedBy(ownerUrl());
+        MockHttpServletRequest request = operation();
+        request.addHeader(WalletOwnershipFilter.FORWARDED_BY_HEADER, "node-b");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        filter().doFilter(request, response, chain);
+
+        // then
+        assertThat(response.getStatus()).isEqualTo(503);
+        assertThat(forwardedBy.get()).isNull(); // not bounced back either
+        verifyNoInteractions(chain);
+    }
+
+    @Test
+    void doFilter_ShouldNotWaitForTheWalletLock_WhenReadingTheBalance() throws Exception {
+        // given
+        when(membership.ownsLocally(SHARD)).thenReturn(true);
+        WalletOwnershipFilter filter = filter();
+        CountDownLatch release = holdWalletLock(filter);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        try {
+            filter.doFilter(new MockHttpServletRequest("GET", "/api/v1/wallets/" + walletId), response, chain);
+        } finally {
+            release.countDown();
+        }
+
+        // then
+        verify(chain).doFilter(any(), eq(response));
+    }
+
+    @Test
+    void doFilter_ShouldWaitForTheWalletLock_WhenLockTimeoutIsZero() throws Exception {
+        // given zero means no limit, not giving up at once
+        lockProperties.setTimeout(Duration.ZERO);
+        when(membership.ownsLocally(SHARD)).thenReturn(true);
+        WalletOwnershipFilter filter = filter();
+        CountDownLatch release = holdWalletLock(filter);
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        CompletableFuture<Void> waiting = CompletableFuture.runAsync(() -> {
+            try {
+                filter.doFilter(operation(), response, chain);
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        Thread.sleep(200);
+        boolean doneWhileLocked = waiting.isDone();
+        release.countDown();
+        waiting.get(5, TimeUnit.SECONDS);
+
+        // then
+        assertThat(doneWhileLocked).isFalse();
+        assertThat(response.getStatus()).isEqualTo(200);
+        verify(chain).doFilter(any(), eq(response));
+    }
+
+    @Test
+    void doFilter_ShouldAnswer504_WhenRequestDeadlineExpiresWaitingForTheWalletLock() throws Exception {
+        // given a lock timeout far longer than the client is willing to wait
+        lockProperties.setTimeout(Duration.ofSeconds(30));
+        when(membership.ownsLocally(SHARD)).thenReturn(true);
+        WalletOwnershipFilter filter = filter();
+        CountDownLatch release = holdWalletLock(filter);
+        MockHttpServletRequest request = operation();
+        request.addHeader(WalletController.REQUEST_TIMEOUT_HEADER, "100");
+        MockHttpServletResponse response = new MockHttpServletResponse();
+
+        // when
+        long started = System.nanoTime();
+        try {
+            filter.doFilter(request, response, chain);
+        } finally {
+            release.countDown();
+        }
+
+        // then
+        assertThat(Duration.ofNanos(System.nanoTime() - started)).isLessThan(Duration.ofSeconds(5));
+        assertThat(response.getStatus()).isEqualTo(504);
+        verifyNoInteractions(chain);
+    }
+
+    // runs an operation on the wallet that stays inside the lock until the returned latch is released
+    private CountDownLatch holdWalletLock(WalletOwnershipFilter filter) throws Exception {
+        CountDownLatch entered = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        Thread holder = new Thread(() -> {
+            try {
+                filter.doFilter(operation(), new MockHttpServletResponse(), (request, response) -> {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException ex) {
+                        Thread.currentThread().interrupt();
+                    }
+                });
+            } catch (Exception ex) {
+                throw new IllegalStateException(ex);
+            }
+        });
+        holder.setDaemon(true);
+        holder.start();
+        assertThat(entered.await(5, TimeUnit.SECONDS)).isTrue();
+        return release;
+    }
+
+    private WalletOwnershipFilter filter() {
+        return new WalletOwnershipFilter(membership, properties, lockProperties, writeBehindProperties,
+                new ObjectMapper().findAndRegisterModules(), RestClient.builder());
+    }
+
+    private void ownedBy(String url) {
+        when(membership.ownsLocally(SHARD)).thenReturn(false);
+        when(membership.ownerUrl(SHARD)).thenReturn(url);
+    }
+
+    private MockHttpServletRequest operation() {
+        MockHttpServletRequest request = new MockHttpServletRequest("POST", "/api/v1/wallet");
+        request.setContentType("application/json");
+        request.setContent(("{\"walletId\":\"" + walletId + "\",\"operationType\":\"DEPOSIT\",\"amount\":500.00}")
+                .getBytes(StandardCharsets.UTF_8));
+        return request;
+    }
+
+    private String ownerUrl() {
+        return "http://localhost:" + owner.getAddress().getPort();
+    }
+
+    private static String closedPortUrl() throws Exception {
+        try (ServerSocket socket = new ServerSocket(0)) {
+            return "http://localhost:" + socket.getLocalPort();
+        }
+    }
+}
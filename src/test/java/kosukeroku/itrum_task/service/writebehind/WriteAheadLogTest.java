@@ -0,0 +1,146 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.exception.WriteAheadLogException;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import static org.assertj.core.api.Assertions.*;
+
+class WriteAheadLogTest {
+
+    @TempDir
+    Path directory;
+
+    private WriteBehindProperties properties;
+    private WriteAheadLog writeAheadLog;
+    private UUID walletId;
+
+    @BeforeEach
+    void setUp() {
+        properties = new WriteBehindProperties();
+        properties.setDirectory(directory);
+        properties.setGroupCommitInterval(Duration.ofMillis(1));
+        properties.setSegmentSize(DataSize.ofBytes(WriteAheadLog.RECORD_SIZE * 4L)); // roll over every 4 entries
+
+        walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+        writeAheadLog = new WriteAheadLog(properties);
+        writeAheadLog.open(0);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeAheadLog.close();
+    }
+
+    @Test
+    void append_ShouldBecomeDurable_AfterGroupCommit() throws Exception {
+        // when
+        WriteAheadLog.Appended appended = append("100.00", "100.00");
+        appended.durable().get(5, TimeUnit.SECONDS);
+
+        // then
+        List<WalEntry> durable = writeAheadLog.peekDurable(10);
+        assertThat(durable).hasSize(1);
+        assertThat(durable.get(0).seq()).isEqualTo(appended.seq());
+        assertThat(durable.get(0).amount()).isEqualByComparingTo("100.00");
+        assertThat(durable.get(0).currency()).isEqualTo("RUB");
+    }
+
+    @Test
+    void open_ShouldReplayOnlyUnappliedEntries_AfterRestart() throws Exception {
+        // given
+        for (int i = 1; i <= 6; i++) {
+            append("10.00", String.valueOf(i * 10)).durable().get(5, TimeUnit.SECONDS);
+        }
+        writeAheadLog.close();
+
+        // when restarted with entries up to 4 already applied
+        writeAheadLog = new WriteAheadLog(properties);
+        writeAheadLog.open(4);
+
+        // then
+        List<WalEntry> replayed = writeAheadLog.peekDurable(10);
+        assertThat(replayed).extracting(WalEntry::seq).containsExactly(5L, 6L);
+        assertThat(replayed.get(1).balanceAfter()).isEqualByComparingTo("60");
+        assertThat(append("1.00", "61.00").seq()).isEqualTo(7); // numbering continues
+    }
+
+    @Test
+    void markApplied_ShouldDeleteSegments_WhenAllTheirEntriesAreApplied() throws Exception {
+        // given two full segments and one partially filled
+        for (int i = 0; i < 9; i++) {
+            append("1.00", "1.00").durable().get(5, TimeUnit.SECONDS);
+        }
+        assertThat(segmentCount()).isEqualTo(3);
+
+        // when
+        writeAheadLog.markApplied(8);
+
+        // then
+        assertThat(segmentCount()).isEqualTo(1); // seq 1-4 and 5-8 are gone, the live segment with seq 9 stays
+        assertThat(writeAheadLog.peekDurable(10)).extracting(WalEntry::seq).containsExactly(9L);
+    }
+
+    @Test
+    void open_ShouldKeepEntriesBeforeTornRecord_AfterCrash() throws Exception {
+        // given three durable entries, the last one torn by a crash in the middle of writing it
+        for (int i = 1; i <= 3; i++) {
+            append("10.00", String.valueOf(i * 10)).durable().get(5, TimeUnit.SECONDS);
+        }
+        writeAheadLog.close();
+        Path segment;
+        try (Stream<Path> files = Files.list(directory)) {
+            segment = files.findFirst().orElseThrow();
+        }
+        byte[] content = Files.readAllBytes(segment);
+        content[2 * WriteAheadLog.RECORD_SIZE + 24] ^= 0x7f; // amount of seq 3, its crc no longer matches
+        Files.write(segment, content);
+
+        // when
+        writeAheadLog = new WriteAheadLog(properties);
+        writeAheadLog.open(0);
+
+        // then
+        assertThat(writeAheadLog.peekDurable(10)).extracting(WalEntry::seq).containsExactly(1L, 2L);
+        assertThat(append("1.00", "21.00").seq()).isEqualTo(3);
+    }
+
+    @Test
+    void append_ShouldRejectBeforeTakingSeq_WhenAmountCannotBeStored() throws Exception {
+        // then neither a scale above two nor more than a long of cents gets a seq or a record
+        assertThatThrownBy(() -> append("1e-200", "1000.00")).isInstanceOf(WriteAheadLogException.class);
+        assertThatThrownBy(() -> append("1e30", "1000.00")).isInstanceOf(WriteAheadLogException.class);
+        WriteAheadLog.Appended appended = append("5", "1005");
+        appended.durable().get(5, TimeUnit.SECONDS);
+
+        assertThat(appended.seq()).isEqualTo(1);
+        WalEntry entry = writeAheadLog.peekDurable(10).get(0);
+        assertThat(entry.amount()).isEqualTo(new BigDecimal("5.00")); // stored at scale 2
+        assertThat(entry.balanceAfter()).isEqualTo(new BigDecimal("1005.00"));
+    }
+
+    private WriteAheadLog.Appended append(String amount, String balanceAfter) {
+        return writeAheadLog.append(walletId, OperationType.DEPOSIT, new BigDecimal(amount), "RUB", new BigDecimal(balanceAfter));
+    }
+
+    private long segmentCount() throws IOException {
+        try (Stream<Path> files = Files.list(directory)) {
+            return files.count();
+        }
+    }
+}
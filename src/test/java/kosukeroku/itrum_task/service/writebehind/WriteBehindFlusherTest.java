@@ -0,0 +1,195 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.model.WriteBehindCheckpoint;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.repository.WriteBehindCheckpointRepository;
+import kosukeroku.itrum_task.service.WalletService;
+import kosukeroku.itrum_task.service.WalletTransactionService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.ArgumentCaptor;
+import org.mockito.InOrder;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WriteBehindFlusherTest {
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private WriteBehindLedger writeBehindLedger;
+
+    @Mock
+    private WalletRepository walletRepository;
+
+    @Mock
+    private WriteBehindCheckpointRepository checkpointRepository;
+
+    @Mock
+    private WalletTransactionService walletTransactionService;
+
+    @Mock
+    private WalletService walletService;
+
+    @Mock
+    private PlatformTransactionManager transactionManager;
+
+    private WriteBehindProperties properties;
+    private WriteAheadLog writeAheadLog;
+    private WriteBehindFlusher flusher;
+    private UUID walletId;
+
+    @BeforeEach
+    void setUp() {
+        properties = new WriteBehindProperties();
+        properties.setDirectory(directory);
+        properties.setGroupCommitInterval(Duration.ofMillis(1));
+
+        walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+        writeAheadLog = new WriteAheadLog(properties);
+        flusher = new WriteBehindFlusher(writeAheadLog, writeBehindLedger, walletRepository, checkpointRepository,
+                walletTransactionService, walletService, new TransactionTemplate(transactionManager), properties);
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeAheadLog.close();
+    }
+
+    @Test
+    void start_ShouldReplayUnappliedEntries_AfterRestart() throws Exception {
+        // given a log left by a previous run with entry 1 already applied
+        WriteAheadLog previous = new WriteAheadLog(properties);
+        previous.open(0);
+        for (int i = 1; i <= 3; i++) {
+            previous.append(walletId, OperationType.DEPOSIT, new BigDecimal("10.00"), "RUB", new BigDecimal(i * 10))
+                    .durable().get(5, TimeUnit.SECONDS);
+        }
+        previous.close();
+        when(checkpointRepository.findById(properties.getNodeId()))
+                .thenReturn(Optional.of(new WriteBehindCheckpoint(properties.getNodeId(), 1, LocalDateTime.now())));
+        Wallet wallet = wallet("100.00");
+        when(walletRepository.findAllByIdWithLock(Set.of(walletId))).thenReturn(List.of(wallet));
+
+        // when
+        flusher.start();
+
+        // then
+        assertThat(wallet.getBalance()).isEqualByComparingTo("120.00"); // entries 2 and 3
+        verify(walletTransactionService, times(2)).record(eq(walletId), eq(OperationType.DEPOSIT), any(), eq("RUB"), any(), any());
+        ArgumentCaptor<WriteBehindCheckpoint> checkpoint = ArgumentCaptor.forClass(WriteBehindCheckpoint.class);
+        verify(checkpointRepository).save(checkpoint.capture());
+        assertThat(checkpoint.getValue().getAppliedSeq()).isEqualTo(3);
+        assertThat(writeAheadLog.unappliedCount()).isZero();
+    }
+
+    @Test
+    void flush_ShouldApplyDeltaToRestoredRow_WhenWalletWasArchived() throws Exception {
+        // given
+        startEmpty();
+        appendDurable("50.00");
+        Wallet restored = wallet("0.00");
+        when(walletRepository.findAllByIdWithLock(Set.of(walletId))).thenReturn(List.of());
+        when(walletService.rehydrate(walletId)).thenReturn(true);
+        when(walletRepository.findByIdWithLock(walletId)).thenReturn(Optional.of(restored));
+
+        // when
+        flusher.flush();
+
+        // then
+        assertThat(restored.getBalance()).isEqualByComparingTo("50.00");
+        verify(checkpointRepository).save(any());
+        assertThat(writeAheadLog.unappliedCount()).isZero();
+    }
+
+    @Test
+    void flush_ShouldFailBatchAndKeepCheckpoint_WhenWalletIsMissing() throws Exception {
+        // given
+        startEmpty();
+        appendDurable("50.00");
+        when(walletRepository.findAllByIdWithLock(Set.of(walletId))).thenReturn(List.of());
+        when(walletService.rehydrate(walletId)).thenReturn(false);
+
+        // when
+        flusher.flush();
+
+        // then
+        verify(checkpointRepository, never()).save(any());
+        verify(transactionManager).rollback(any());
+        verify(writeBehindLedger, never()).evictIdle(anyLong());
+        assertThat(writeAheadLog.peekDurable(10)).hasSize(1); // retried on the next run
+    }
+
+    @Test
+    void flush_ShouldRecordEntriesInLogOrder_AndSaveCheckpointLast() throws Exception {
+        // given entries of two wallets, interleaved
+        startEmpty();
+        UUID otherId = UUID.fromString("223a4567-b89c-12d3-e456-123456789012");
+        appendDurable("10.00");
+        writeAheadLog.append(otherId, OperationType.WITHDRAW, new BigDecimal("3.00"), "RUB", new BigDecimal("47.00"))
+                .durable().get(5, TimeUnit.SECONDS);
+        appendDurable("20.00");
+        Wallet wallet = wallet("100.00");
+        Wallet other = new Wallet();
+        other.setId(otherId);
+        other.setBalance(new BigDecimal("50.00"));
+        when(walletRepository.findAllByIdWithLock(Set.of(walletId, otherId))).thenReturn(List.of(wallet, other));
+
+        // when
+        flusher.flush();
+
+        // then one net change per wallet, the history in log order, the checkpoint after all of it
+        assertThat(wallet.getBalance()).isEqualByComparingTo("130.00");
+        assertThat(other.getBalance()).isEqualByComparingTo("47.00");
+        InOrder order = inOrder(walletTransactionService, checkpointRepository);
+        order.verify(walletTransactionService).record(eq(walletId), eq(OperationType.DEPOSIT), eq(new BigDecimal("10.00")),
+                any(), any(), any());
+        order.verify(walletTransactionService).record(eq(otherId), eq(OperationType.WITHDRAW), eq(new BigDecimal("3.00")),
+                any(), any(), any());
+        order.verify(walletTransactionService).record(eq(walletId), eq(OperationType.DEPOSIT), eq(new BigDecimal("20.00")),
+                any(), any(), any());
+        order.verify(checkpointRepository).save(argThat(checkpoint -> checkpoint.getAppliedSeq() == 3));
+        assertThat(writeAheadLog.unappliedCount()).isZero();
+    }
+
+    private Wallet wallet(String balance) {
+        Wallet wallet = new Wallet();
+        wallet.setId(walletId);
+        wallet.setBalance(new BigDecimal(balance));
+        return wallet;
+    }
+
+    private void startEmpty() {
+        when(checkpointRepository.findById(properties.getNodeId())).thenReturn(Optional.empty());
+        flusher.start();
+    }
+
+    private void appendDurable(String amount) throws Exception {
+        writeAheadLog.append(walletId, OperationType.DEPOSIT, new BigDecimal(amount), "RUB", new BigDecimal(amount))
+                .durable().get(5, TimeUnit.SECONDS);
+    }
+}
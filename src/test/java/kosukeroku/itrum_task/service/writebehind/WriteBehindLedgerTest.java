@@ -0,0 +1,153 @@
+package kosukeroku.itrum_task.service.writebehind;
+
+import kosukeroku.itrum_task.config.WriteBehindProperties;
+import kosukeroku.itrum_task.dto.OperationType;
+import kosukeroku.itrum_task.dto.WalletRequestDTO;
+import kosukeroku.itrum_task.dto.WalletResponseDTO;
+import kosukeroku.itrum_task.exception.InsufficientFundsException;
+import kosukeroku.itrum_task.exception.WriteAheadLogException;
+import kosukeroku.itrum_task.model.Wallet;
+import kosukeroku.itrum_task.repository.WalletRepository;
+import kosukeroku.itrum_task.service.RequestDeadline;
+import kosukeroku.itrum_task.service.WalletService;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.extension.ExtendWith;
+import org.junit.jupiter.api.io.TempDir;
+import org.mockito.Mock;
+import org.mockito.junit.jupiter.MockitoExtension;
+
+import java.math.BigDecimal;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+
+import static org.assertj.core.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.*;
+import static org.mockito.Mockito.*;
+
+@ExtendWith(MockitoExtension.class)
+class WriteBehindLedgerTest {
+
+    @TempDir
+    Path directory;
+
+    @Mock
+    private WalletRepository walletRepository;
+
+    @Mock
+    private WalletService walletService;
+
+    private WriteAheadLog writeAheadLog;
+    private WriteBehindLedger ledger;
+    private UUID walletId;
+    private Wallet wallet;
+
+    @BeforeEach
+    void setUp() {
+        WriteBehindProperties properties = new WriteBehindProperties();
+        properties.setDirectory(directory);
+        properties.setGroupCommitInterval(Duration.ofMillis(1));
+        writeAheadLog = new WriteAheadLog(properties);
+        writeAheadLog.open(0);
+        ledger = new WriteBehindLedger(walletRepository, walletService, writeAheadLog, properties);
+
+        walletId = UUID.fromString("123a4567-b89c-12d3-e456-123456789012");
+        wallet = new Wallet();
+        wallet.setId(walletId);
+        wallet.setBalance(new BigDecimal("1000.00"));
+        wallet.setHeldAmount(new BigDecimal("200.00"));
+    }
+
+    @AfterEach
+    void tearDown() {
+        writeAheadLog.close();
+    }
+
+    @Test
+    void processOperation_ShouldAcknowledgeFromLog_WithoutTouchingTheWalletRow() {
+        // given
+        when(walletRepository.findByIdUncached(walletId)).thenReturn(Optional.of(wallet));
+
+        // when
+        WalletResponseDTO response = ledger.processOperation(request(OperationType.DEPOSIT, "500.00"), RequestDeadline.none());
+
+        // then
+        assertThat(response.getBalance()).isEqualByComparingTo("1500.00");
+        assertThat(response.getAvailableBalance()).isEqualByComparingTo("1300.00"); // held funds stay reserved
+        List<WalEntry> logged = writeAheadLog.peekDurable(10);
+        assertThat(logged).hasSize(1);
+        assertThat(logged.get(0).balanceAfter()).isEqualByComparingTo("1500.00");
+        verifyNoInteractions(walletService);
+    }
+
+    @Test
+    void processOperation_ShouldRejectWithdrawal_WhenAvailableBalanceIsTooLow() {
+        // given
+        when(walletRepository.findByIdUncached(walletId)).thenReturn(Optional.of(wallet));
+
+        // then 1000 on the balance, but only 800 of it available
+        assertThatThrownBy(() -> ledger.processOperation(request(OperationType.WITHDRAW, "900.00"), RequestDeadline.none()))
+                .isInstanceOf(InsufficientFundsException.class);
+        assertThat(writeAheadLog.unappliedCount()).isZero();
+    }
+
+    @Test
+    void getBalance_ShouldServeCachedBalance_WhileEntriesAreUnflushed() {
+        // given
+        when(walletRepository.findByIdUncached(walletId)).thenReturn(Optional.of(wallet));
+        ledger.processOperation(request(OperationType.WITHDRAW, "300.00"), RequestDeadline.none());
+
+        // when
+        WalletResponseDTO response = ledger.getBalance(walletId);
+
+        // then
+        assertThat(response.getBalance()).isEqualByComparingTo("700.00");
+        verify(walletService, never()).getBalance(any());
+    }
+
+    @Test
+    void processOperation_ShouldRehydrateWallet_WhenWalletIsArchived() {
+        // given
+        when(walletRepository.findByIdUncached(walletId)).thenReturn(Optional.empty(), Optional.of(wallet));
+        when(walletService.rehydrate(walletId)).thenReturn(true);
+
+        // when
+        WalletResponseDTO response = ledger.processOperation(request(OperationType.DEPOSIT, "10.00"), RequestDeadline.none());
+
+        // then
+        assertThat(response.getBalance()).isEqualByComparingTo("1010.00");
+        verify(walletService).rehydrate(walletId);
+    }
+
+    @Test
+    void processOperation_ShouldTakeBackBalanceChange_WhenEntryIsNotMadeDurable() {
+        // given a log whose sync fails
+        WriteAheadLog failingLog = mock(WriteAheadLog.class);
+        when(failingLog.append(eq(walletId), any(), any(), any(), any())).thenReturn(new WriteAheadLog.Appended(1,
+                CompletableFuture.failedFuture(new WriteAheadLogException("Failed to sync write-ahead log"))));
+        ledger = new WriteBehindLedger(walletRepository, walletService, failingLog, new WriteBehindProperties());
+        when(walletRepository.findByIdUncached(walletId)).thenReturn(Optional.of(wallet));
+
+        // when
+        assertThatThrownBy(() -> ledger.processOperation(request(OperationType.DEPOSIT, "500.00"), RequestDeadline.none()))
+                .isInstanceOf(WriteAheadLogException.class);
+
+        // then the 500 never counts, 900 is still more than the 800 available
+        assertThat(ledger.getBalance(walletId).getBalance()).isEqualByComparingTo("1000.00");
+        assertThatThrownBy(() -> ledger.processOperation(request(OperationType.WITHDRAW, "900.00"), RequestDeadline.none()))
+                .isInstanceOf(InsufficientFundsException.class);
+    }
+
+    private WalletRequestDTO request(OperationType operationType, String amount) {
+        return WalletRequestDTO.builder()
+                .walletId(walletId)
+                .operationType(operationType)
+                .amount(new BigDecimal(amount))
+                .build();
+    }
+}